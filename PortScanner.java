@@ -1,8 +1,53 @@
+import com.sun.management.UnixOperatingSystemMXBean;
+
+import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.ConnectException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * 端口扫描器 - 基于Java的多线程TCP端口扫描工具
@@ -11,22 +56,119 @@ import java.util.concurrent.CountDownLatch;
 public class PortScanner {
     // 扫描结果输出控制：是否只显示开放端口
     private static boolean onlyShowOpenPorts = true;
-    // 每个线程负责扫描的端口数量
+    // 每个线程负责扫描的端口数量（用于计算thread引擎的线程池大小）
     private static final int PORTS_PER_THREAD = 100;
-    // 连接超时时间（毫秒）
+    // 同一组内的主机交替探测，使慢主机与快主机的探测互相重叠
+    private static final int HOST_GROUP_SIZE = 256;
+    // 初始连接超时时间（毫秒），主机尚无往返时间样本时使用
     private static final int TIMEOUT = 500;
+    // 扫描结果输出，由单独的写线程批量写出
+    private static final ResultSink resultSink = new ResultSink();
+    // 主机名解析缓存，每个主机名只解析一次
+    private static final ConcurrentHashMap<String, InetAddress> resolvedHosts = new ConcurrentHashMap<>();
+    // 自适应连接超时的下限与上限（毫秒），未指定下限时取默认下限（不超过上限）
+    // 超时的端口默认以加倍的超时重探一次，因此下限低于初始超时不会把慢应答误判为被过滤
+    private static final int DEFAULT_MIN_TIMEOUT = 250;
+    private static int minTimeout;
+    private static boolean minTimeoutGiven;
+    private static int maxTimeout = 3000;
+    // 扫描引擎：nio（基于Selector的非阻塞连接）、virtual（每个端口一个虚拟线程阻塞连接）
+    // 或 thread（每个线程阻塞扫描一段端口）
+    private static String scanEngine = "nio";
+    // 为JVM自身（类加载、标准输出、Selector等）保留的文件描述符数
+    private static final int FD_RESERVE = 128;
+    // nio/virtual引擎同时进行中的最大连接数，默认不超过进程的文件描述符上限减去保留数
+    private static int maxInFlight = defaultMaxInFlight();
+    // nio引擎的事件循环线程数，0表示按处理器数自动确定
+    private static int eventLoops;
+    // 连接成功后以RST关闭（SO_LINGER为0），不进行FIN挥手，本机也不留下TIME_WAIT状态
+    private static boolean resetOnClose;
+    // 扫描结束后导出结果的文件，以及用于对比的上次导出结果，为null表示不使用
+    private static String exportFile;
+    private static String baselineFile;
+    // 目标列表（如 10.0.0.0/8, 192.168.1.10-192.168.1.50, !10.1.0.0/16），为null时交互输入起止IP
+    private static String targetSpec;
+    // 排除列表文件，每行一个目标，这些地址不会被扫描
+    private static String excludeFile;
+    // 探测顺序：sequential（按主机组顺序）、frequency（端口按开放可能性从高到低）或 random（按种子对 (主机, 端口) 整体随机排列）
+    private static String probeOrder = "sequential";
+    // 只扫描端口范围内最常开放的N个端口，按可能性从高到低探测，0表示扫描整个范围
+    private static int topPorts;
+    // 随机顺序的种子，相同种子得到相同顺序
+    private static long seed = System.nanoTime();
+    private static boolean seedGiven;
+    // 分片扫描：本实例为第shardIndex片（从1开始），共shardCount片
+    private static int shardIndex = 1;
+    private static int shardCount = 1;
+    // 并发控制：fixed（固定为--max-inflight或线程数）或 adaptive（按超时比例加性增、乘性减）
+    private static boolean adaptiveConcurrency;
+    // 全局探测速率上限（每秒），0表示不限速
+    private static double probeRate;
+    // 单个主机与单个/24子网（IPv6为/120）同时进行的最大探测数，0表示不限制
+    private static int hostConcurrency;
+    private static int subnetConcurrency;
+    // 放弃主机的阈值：从未应答的主机连续超时或不可达达到该次数后跳过其余端口，0表示不放弃
+    // 两者默认都不开启：以icmp-host-prohibited拒绝的防火墙对关闭端口同样回应不可达，开放端口却能连接
+    private static int deadHostTimeouts;
+    private static int deadHostUnreachable;
+    // 主机发现：off（不发现）、tcp（探测常用端口）或 icmp（常用端口无应答时再用isReachable），以及发现阶段的超时（毫秒）
+    private static String discoveryMode = "off";
+    private static int discoveryTimeout = 300;
+    // 两阶段扫描：首轮超时上限（毫秒，0表示不限制），以及超时端口的重探次数（默认1，0表示不重探）
+    private static int sweepTimeout;
+    private static int probeRetries = 1;
+    private static final int MAX_RETRIES = 16;
+    // 分布式扫描：协调者监听的端口（0表示不作为协调者），工作者连接的协调者地址（host:port）
+    private static int coordinatorPort;
+    private static String coordinatorAddress;
     
     /**
      * 主方法 - 程序入口
+     * 可选参数：--engine nio|virtual|thread，--max-inflight N，--event-loops N（nio引擎的事件循环数，默认为处理器数），
+     * --close fin|rst（rst：连接成功后直接复位，减少报文并避免TIME_WAIT），--min-timeout MS，--max-timeout MS，
+     * --export FILE，--baseline FILE，--targets LIST，--exclude-file FILE，--order sequential|frequency|random，--seed N，
+     * --top-ports N（只扫描最常开放的N个端口），
+     * --shard I/N（多个实例各扫描互不相交的一片，随机顺序时须使用相同的--seed），
+     * --coordinator PORT（向工作者分发扫描任务），--worker HOST:PORT（从协调者领取扫描任务），
+     * --rate N（每秒探测数），--host-concurrency N，--subnet-concurrency N，--concurrency fixed|adaptive，
+     * --dead-host-timeouts N，--dead-host-unreachable N（从未应答的主机超时或不可达达到N次后跳过其余端口，0为不跳过），
+     * --discovery off|tcp|icmp，--discovery-timeout MS（扫描前先找出存活主机，只扫描存活主机），
+     * --sweep-timeout MS，--retries N（首轮以较短超时扫描全部端口，之后以逐次加倍的超时重探超时的端口，默认重探1次）
      */
     public static void main(String[] args) {
         Scanner scanner = new Scanner(System.in);
         System.out.println("===== Port Scanner - Multi-threaded TCP Port Scanning Tool =====");
         
         try {
+            parseOptions(args);
+            
+            // 工作者模式：扫描参数全部来自协调者
+            if (coordinatorAddress != null) {
+                Runtime.getRuntime().addShutdownHook(new Thread(resultSink::close));
+                int colon = coordinatorAddress.lastIndexOf(':');
+                new ScanWorker(coordinatorAddress.substring(0, colon),
+                        Integer.parseInt(coordinatorAddress.substring(colon + 1))).run();
+                return;
+            }
+            
             // 获取用户输入的扫描参数
-            String startIp = getInput(scanner, "Enter start IP address:");
-            String endIp = getInput(scanner, "Enter end IP address (if scanning a single IP, enter the same address):");
+            TargetSet targets;
+            if (targetSpec != null) {
+                targets = TargetSet.parse(targetSpec);
+            } else {
+                String startIp = getInput(scanner, "Enter start IP address:");
+                String endIp = getInput(scanner, "Enter end IP address (if scanning a single IP, enter the same address):");
+                // 解析IP地址范围
+                long[] ipRange = parseIpRange(startIp, endIp);
+                if (ipRange == null) {
+                    System.out.println("Failed to parse IP range. Check input format.");
+                    return;
+                }
+                targets = TargetSet.of(ipRange[0], ipRange[1]);
+            }
+            if (excludeFile != null) {
+                targets = targets.subtract(TargetSet.load(excludeFile));
+            }
             int startPort = Integer.parseInt(getInput(scanner, "Enter start port:"));
             int endPort = Integer.parseInt(getInput(scanner, "Enter end port:"));
             onlyShowOpenPorts = Boolean.parseBoolean(getInput(scanner, "Show only open ports (true/false):"));
@@ -37,31 +179,80 @@ public class PortScanner {
                 System.out.println("Invalid port range. Ensure the end port is greater than or equal to the start port.");
                 return;
             }
+            // 端口按开放可能性从高到低排列，--top-ports时只保留前N个
+            int[] portOrder = null;
+            if (topPorts > 0 || "frequency".equals(probeOrder)) {
+                portOrder = PortFrequency.order(startPort, endPort, topPorts);
+                totalPorts = portOrder.length;
+                System.out.println("Scanning " + totalPorts + " ports in order of open likelihood");
+            }
             
             // 计算需要启动的线程数量
             int threadCount = (int) Math.ceil((double) totalPorts / PORTS_PER_THREAD);
-            System.out.println("Based on the workload, " + threadCount + " threads will be started for scanning...");
+            if ("nio".equals(scanEngine)) {
+                System.out.println("Using NIO engine with up to " + maxInFlight + " concurrent connections...");
+            } else if ("virtual".equals(scanEngine)) {
+                if (VirtualThreadScanEngine.isSupported()) {
+                    System.out.println("Using virtual threads with up to " + maxInFlight + " concurrent connections...");
+                } else {
+                    System.out.println("Virtual threads are not available on this runtime, falling back to "
+                            + VirtualThreadScanEngine.concurrency(maxInFlight) + " platform threads...");
+                }
+            } else {
+                System.out.println("Based on the workload, " + threadCount + " threads will be started for scanning...");
+            }
             
-            // 解析IP地址范围
-            long[] ipRange = parseIpRange(startIp, endIp);
-            if (ipRange == null) {
-                System.out.println("Failed to parse IP range. Check input format.");
-                return;
+            // 退出时（包括Ctrl+C）写出尚未输出的结果
+            Runtime.getRuntime().addShutdownHook(new Thread(resultSink::close));
+            
+            // 结果集的范围始终是全部目标，未发现的主机按全部关闭计入，与上次结果对比时才能报告下线的主机
+            ScanResults results = new ScanResults(targets, startPort, endPort);
+            
+            // 主机发现：稀疏的地址段中大部分地址没有主机，只扫描存活的主机
+            TargetSet live = targets;
+            if (!"off".equals(discoveryMode)) {
+                System.out.println("Discovering live hosts among " + targets.size() + " IP addresses...");
+                live = new HostDiscovery(maxInFlight, discoveryTimeout, "icmp".equals(discoveryMode)).discover(targets);
+                System.out.println("Found " + live.size() + " live hosts");
+                if (live.size() == 0) {
+                    reportResults(results);
+                    return;
+                }
             }
-            long startIpNum = ipRange[0];
-            long endIpNum = ipRange[1];
-            int ipCount = (int) (endIpNum - startIpNum + 1);
             
-            System.out.println("Starting scan on " + ipCount + " IP addresses, port range: " + startPort + " - " + endPort);
+            System.out.println("Starting scan on " + live.size() + " IP addresses, port range: " + startPort + " - " + endPort);
+            
+            // 协调者模式：把扫描任务分发给工作者进程
+            if (coordinatorPort > 0) {
+                new ScanCoordinator(live, startPort, endPort, results).run(coordinatorPort);
+                reportResults(results);
+                return;
+            }
             
-            // 对每个IP地址进行端口扫描
-            for (long ipNum = startIpNum; ipNum <= endIpNum; ipNum++) {
-                String currentIp = ipNumToAddress(ipNum);
-                scanIpAddress(currentIp, startPort, endPort, threadCount);
+            // 所有IP地址的探测共享同一个调度器和并发池
+            ProbePermutation permutation = null;
+            if ("random".equals(probeOrder)) {
+                permutation = new ProbePermutation(live.size() * totalPorts, seed);
+                System.out.println("Probing in random order with seed " + seed);
+            }
+            ProbeScheduler scheduler = new ProbeScheduler(live, startPort, endPort, portOrder, results, permutation, shardIndex - 1, shardCount);
+            if (adaptiveConcurrency) {
+                System.out.println("Adaptive concurrency enabled, at most " + maxInFlight + " probes in flight");
+            }
+            if (probeRate > 0) {
+                System.out.println("Rate limited to " + probeRate + " probes per second");
+            }
+            if (shardCount > 1) {
+                System.out.println("Shard " + shardIndex + "/" + shardCount + ": " + scheduler.size() + " probes");
+            }
+            if (scanTargets(scheduler, threadCount)) {
+                reportResults(results);
             }
             
         } catch (NumberFormatException e) {
             System.out.println("Input format error. Ensure port numbers are integers.");
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid option: " + e.getMessage());
         } catch (Exception e) {
             System.out.println("Error during scanning: " + e.getMessage());
             e.printStackTrace();
@@ -71,40 +262,372 @@ public class PortScanner {
     }
     
     /**
-     * 扫描指定IP地址的端口范围
-     * @param ipAddress 目标IP地址
-     * @param startPort 起始端口
-     * @param endPort 终止端口
-     * @param threadCount 线程数量
+     * 使用所选引擎执行调度器中的全部探测
+     * @param scheduler 探测调度器
+     * @param threadCount thread引擎的线程数量
+     * @return 是否全部完成，失败或中断时返回false
      */
-    private static void scanIpAddress(String ipAddress, int startPort, int endPort, int threadCount) {
-        System.out.println("\nStarting scan on IP: " + ipAddress + ", port range: " + startPort + " - " + endPort);
-        
-        // 使用CountDownLatch等待所有线程完成
-        CountDownLatch latch = new CountDownLatch(threadCount);
-        int portsPerThread = (endPort - startPort + 1 + threadCount - 1) / threadCount; // 向上取整
-        
-        // 创建并启动扫描线程
-        for (int i = 0; i < threadCount; i++) {
-            int threadStartPort = startPort + i * portsPerThread;
-            int threadEndPort = Math.min(threadStartPort + portsPerThread - 1, endPort);
-            
-            if (threadStartPort > endPort) {
-                break;
-            }
-            
-            PortScanThread thread = new PortScanThread(ipAddress, threadStartPort, threadEndPort, latch);
-            thread.start();
-        }
-        
+    private static boolean scanTargets(ProbeScheduler scheduler, int threadCount) {
+        ProbeScheduler[] parts = {scheduler};
         try {
-            // 等待所有线程完成扫描
-            latch.await();
-            System.out.println("Scan completed for IP " + ipAddress);
+            if ("nio".equals(scanEngine)) {
+                parts = scheduler.split(eventLoops > 0 ? eventLoops : Runtime.getRuntime().availableProcessors());
+                if (parts.length == 1) {
+                    new NioScanEngine(maxInFlight).scan(scheduler);
+                } else {
+                    System.out.println("Running " + parts.length + " event loops");
+                    runEventLoops(parts);
+                }
+            } else if ("virtual".equals(scanEngine)) {
+                new VirtualThreadScanEngine(maxInFlight).scan(scheduler);
+            } else {
+                // 使用CountDownLatch等待所有线程完成
+                CountDownLatch latch = new CountDownLatch(threadCount);
+                for (int i = 0; i < threadCount; i++) {
+                    new PortScanThread(scheduler, latch).start();
+                }
+                latch.await();
+            }
+            for (ProbeScheduler part : parts) {
+                part.finish();
+            }
+            resultSink.write("\nScan completed");
+            resultSink.flush();
+            return true;
+        } catch (IOException e) {
+            resultSink.flush();
+            System.out.println("Scan failed: " + e.getMessage());
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             System.out.println("Scan interrupted: " + e.getMessage());
         }
+        return false;
+    }
+    
+    /**
+     * 解析命令行参数
+     * @param args 命令行参数
+     */
+    private static void parseOptions(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            String value = args[++i];
+            switch (option) {
+                case "--engine":
+                    if (!"nio".equals(value) && !"virtual".equals(value) && !"thread".equals(value)) {
+                        throw new IllegalArgumentException("Unknown engine " + value);
+                    }
+                    scanEngine = value;
+                    break;
+                case "--close":
+                    if (!"fin".equals(value) && !"rst".equals(value)) {
+                        throw new IllegalArgumentException("Unknown close mode " + value);
+                    }
+                    resetOnClose = "rst".equals(value);
+                    break;
+                case "--max-inflight":
+                    maxInFlight = Integer.parseInt(value);
+                    if (maxInFlight <= 0) {
+                        throw new IllegalArgumentException("--max-inflight must be positive");
+                    }
+                    break;
+                case "--export":
+                    exportFile = value;
+                    break;
+                case "--baseline":
+                    baselineFile = value;
+                    break;
+                case "--targets":
+                    targetSpec = value;
+                    break;
+                case "--exclude-file":
+                    excludeFile = value;
+                    break;
+                case "--order":
+                    if (!"sequential".equals(value) && !"frequency".equals(value) && !"random".equals(value)) {
+                        throw new IllegalArgumentException("Unknown order " + value);
+                    }
+                    probeOrder = value;
+                    break;
+                case "--event-loops":
+                    eventLoops = Integer.parseInt(value);
+                    if (eventLoops < 0) {
+                        throw new IllegalArgumentException("--event-loops must not be negative");
+                    }
+                    break;
+                case "--top-ports":
+                    topPorts = Integer.parseInt(value);
+                    if (topPorts <= 0) {
+                        throw new IllegalArgumentException("--top-ports must be positive");
+                    }
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(value);
+                    seedGiven = true;
+                    break;
+                case "--shard":
+                    String[] shard = value.split("/");
+                    if (shard.length != 2) {
+                        throw new IllegalArgumentException("--shard must be I/N");
+                    }
+                    shardIndex = Integer.parseInt(shard[0]);
+                    shardCount = Integer.parseInt(shard[1]);
+                    if (shardCount <= 0 || shardIndex < 1 || shardIndex > shardCount) {
+                        throw new IllegalArgumentException("--shard index must be between 1 and N");
+                    }
+                    break;
+                case "--coordinator":
+                    coordinatorPort = Integer.parseInt(value);
+                    if (coordinatorPort <= 0 || coordinatorPort > 65535) {
+                        throw new IllegalArgumentException("Invalid coordinator port " + value);
+                    }
+                    break;
+                case "--worker":
+                    if (value.lastIndexOf(':') <= 0) {
+                        throw new IllegalArgumentException("--worker must be HOST:PORT");
+                    }
+                    coordinatorAddress = value;
+                    break;
+                case "--concurrency":
+                    if (!"fixed".equals(value) && !"adaptive".equals(value)) {
+                        throw new IllegalArgumentException("Unknown concurrency mode " + value);
+                    }
+                    adaptiveConcurrency = "adaptive".equals(value);
+                    break;
+                case "--rate":
+                    probeRate = Double.parseDouble(value);
+                    if (probeRate < 0) {
+                        throw new IllegalArgumentException("--rate must not be negative");
+                    }
+                    break;
+                case "--host-concurrency":
+                    hostConcurrency = Integer.parseInt(value);
+                    break;
+                case "--subnet-concurrency":
+                    subnetConcurrency = Integer.parseInt(value);
+                    break;
+                case "--discovery":
+                    if (!"off".equals(value) && !"tcp".equals(value) && !"icmp".equals(value)) {
+                        throw new IllegalArgumentException("Unknown discovery mode " + value);
+                    }
+                    discoveryMode = value;
+                    break;
+                case "--discovery-timeout":
+                    discoveryTimeout = Integer.parseInt(value);
+                    if (discoveryTimeout <= 0) {
+                        throw new IllegalArgumentException("--discovery-timeout must be positive");
+                    }
+                    break;
+                case "--sweep-timeout":
+                    sweepTimeout = Integer.parseInt(value);
+                    break;
+                case "--retries":
+                    probeRetries = Integer.parseInt(value);
+                    break;
+                case "--dead-host-timeouts":
+                    deadHostTimeouts = Integer.parseInt(value);
+                    break;
+                case "--dead-host-unreachable":
+                    deadHostUnreachable = Integer.parseInt(value);
+                    break;
+                case "--min-timeout":
+                    minTimeout = Integer.parseInt(value);
+                    minTimeoutGiven = true;
+                    break;
+                case "--max-timeout":
+                    maxTimeout = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+        // 协调者按工作单元分发任务，单元内总是按顺序扫描，分片与随机顺序在此模式下不起作用
+        if (coordinatorPort > 0 && (shardCount > 1 || "random".equals(probeOrder) || seedGiven)) {
+            throw new IllegalArgumentException("--shard, --order random and --seed are not supported in coordinator mode");
+        }
+        if (shardCount > 1 && "random".equals(probeOrder) && !seedGiven) {
+            throw new IllegalArgumentException("--shard with --order random requires the same --seed on every shard");
+        }
+        if (shardCount > 1 && baselineFile != null) {
+            throw new IllegalArgumentException("--baseline cannot be used with --shard; merge the shard exports and compare them instead");
+        }
+        if (shardCount > 1 && !"off".equals(discoveryMode)) {
+            throw new IllegalArgumentException("--discovery cannot be used with --shard; each shard could find a different set of live hosts");
+        }
+        boolean portSubset = topPorts > 0 || "frequency".equals(probeOrder);
+        if (portSubset && coordinatorPort > 0) {
+            throw new IllegalArgumentException("--top-ports and --order frequency are not supported in coordinator mode");
+        }
+        if (topPorts > 0 && baselineFile != null) {
+            throw new IllegalArgumentException("--baseline cannot be used with --top-ports; ports outside the top set are not scanned");
+        }
+        if (sweepTimeout < 0 || probeRetries < 0) {
+            throw new IllegalArgumentException("--sweep-timeout and --retries must not be negative");
+        }
+        // 重探的超时逐次加倍，超过该次数时早已达到超时上限
+        if (probeRetries > MAX_RETRIES) {
+            throw new IllegalArgumentException("--retries must not exceed " + MAX_RETRIES);
+        }
+        if (sweepTimeout > 0 && probeRetries == 0) {
+            throw new IllegalArgumentException("--sweep-timeout requires --retries so that timed-out ports are probed again");
+        }
+        if (deadHostTimeouts < 0 || deadHostUnreachable < 0) {
+            throw new IllegalArgumentException("--dead-host-timeouts and --dead-host-unreachable must not be negative");
+        }
+        if (!minTimeoutGiven) {
+            minTimeout = Math.min(maxTimeout, DEFAULT_MIN_TIMEOUT);
+        }
+        if (minTimeout <= 0 || maxTimeout < minTimeout) {
+            throw new IllegalArgumentException("--min-timeout must be positive and not exceed --max-timeout");
+        }
+    }
+    
+    /**
+     * 输出结果汇总，按需导出结果并与上次结果对比
+     * @param results 本次扫描结果
+     */
+    private static void reportResults(ScanResults results) {
+        long open = results.count(PortState.OPEN);
+        long filtered = results.count(PortState.FILTERED);
+        long unreachable = results.count(PortState.UNREACHABLE);
+        System.out.println("Summary: " + results.hostCount() + " hosts, "
+                + open + " open, "
+                + (results.probeCount() - open - filtered - unreachable) + " closed, "
+                + filtered + " filtered, "
+                + unreachable + " unreachable ports");
+        try {
+            if (exportFile != null) {
+                results.export(exportFile);
+                System.out.println("Results exported to " + exportFile);
+            }
+            if (baselineFile != null) {
+                ScanResults baseline = ScanResults.load(baselineFile);
+                System.out.println("Changes since " + baselineFile + ":");
+                results.diff(baseline, (address, port, before, after) ->
+                        System.out.println("Host: " + address.getHostAddress() + " - Port " + port + " " + before + " -> " + after));
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to process result file: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * 每个事件循环一个线程，各自拥有Selector、时间轮和一部分主机，并发上限按循环数均分
+     * @param parts 按主机划分的调度器
+     * @throws IOException 任一事件循环失败（含非IO异常和错误）时抛出
+     * @throws InterruptedException 等待时被中断
+     */
+    private static void runEventLoops(ProbeScheduler[] parts) throws IOException, InterruptedException {
+        int perLoop = (maxInFlight + parts.length - 1) / parts.length;
+        // 任何异常或错误都要记录，否则该循环的主机会被当作已扫描完成
+        Throwable[] failure = new Throwable[1];
+        Thread[] loops = new Thread[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            ProbeScheduler part = parts[i];
+            loops[i] = new Thread(() -> {
+                try {
+                    new NioScanEngine(perLoop).scan(part);
+                } catch (Throwable e) {
+                    synchronized (failure) {
+                        if (failure[0] == null) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            }, "event-loop-" + i);
+            loops[i].start();
+        }
+        for (Thread loop : loops) {
+            loop.join();
+        }
+        synchronized (failure) {
+            if (failure[0] instanceof IOException) {
+                throw (IOException) failure[0];
+            }
+            if (failure[0] != null) {
+                throw new IOException("Event loop failed: " + failure[0], failure[0]);
+            }
+        }
+    }
+    
+    /**
+     * 计算默认的最大并发连接数：4096，但不超过文件描述符上限减去保留数
+     * 常见的1024上限下若按4096打开连接，JVM加载类时会因没有可用描述符而失败
+     * @return 默认最大并发连接数
+     */
+    private static int defaultMaxInFlight() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof UnixOperatingSystemMXBean) {
+            long limit = ((UnixOperatingSystemMXBean) os).getMaxFileDescriptorCount() - FD_RESERVE;
+            return (int) Math.max(1, Math.min(4096, limit));
+        }
+        return 4096;
+    }
+    
+    /**
+     * 阻塞方式探测单个端口，超时时间取自主机的往返时间估计
+     * @param probe 探测
+     * @return 端口状态
+     */
+    private static PortState probePort(Probe probe) {
+        HostState host = probe.host;
+        try (Socket socket = new Socket()) {
+            if (resetOnClose) {
+                socket.setSoLinger(true, 0);
+            }
+            // 往返时间只从发起连接开始计算，不含创建套接字的开销
+            long start = System.nanoTime();
+            try {
+                // 尝试连接目标端口，设置超时时间
+                socket.connect(new InetSocketAddress(host.inetAddress, probe.port), probe.timeoutMillis());
+                host.rtt.addSample(System.nanoTime() - start);
+                return PortState.OPEN;
+            } catch (IOException e) {
+                PortState state = classifyFailure(e);
+                if (state == PortState.CLOSED) {
+                    // 收到RST，同样是一次完整的往返
+                    host.rtt.addSample(System.nanoTime() - start);
+                }
+                return state;
+            }
+        } catch (IOException e) {
+            // 设置套接字选项失败
+            return classifyFailure(e);
+        }
+    }
+    
+    /**
+     * 按连接失败的异常类型判断端口状态
+     * ConnectException为收到RST，SocketTimeoutException为没有任何应答，
+     * 其余（NoRouteToHostException、网络不可达等）说明探测根本没有到达主机
+     * @param e 连接异常
+     * @return CLOSED、FILTERED或UNREACHABLE
+     */
+    private static PortState classifyFailure(IOException e) {
+        if (e instanceof ConnectException) {
+            return PortState.CLOSED;
+        }
+        if (e instanceof SocketTimeoutException) {
+            return PortState.FILTERED;
+        }
+        return PortState.UNREACHABLE;
+    }
+    
+    /**
+     * 输出单个端口的扫描结果
+     * @param ipAddress 目标IP地址
+     * @param port 端口
+     * @param state 端口状态
+     */
+    private static void printResult(String ipAddress, int port, PortState state) {
+        if (state == PortState.OPEN) {
+            resultSink.write("Host: " + ipAddress + " - Port " + port + " is open!");
+        } else if (!onlyShowOpenPorts) {
+            resultSink.write("Host: " + ipAddress + " - Port " + port + " is " + state.name().toLowerCase());
+        }
     }
     
     /**
@@ -115,8 +638,8 @@ public class PortScanner {
      */
     private static long[] parseIpRange(String startIp, String endIp) {
         try {
-            long start = ipAddressToNum(startIp);
-            long end = ipAddressToNum(endIp);
+            long start = hostToNum(startIp);
+            long end = hostToNum(endIp);
             
             if (start > end) {
                 long temp = start;
@@ -131,7 +654,34 @@ public class PortScanner {
     }
     
     /**
-     * 将IP地址转换为长整型数字表示
+     * 将IP地址或主机名转换为长整型数字表示，主机名经缓存只解析一次
+     * @param host IP地址或主机名
+     * @return 长整型IP地址
+     * @throws UnknownHostException 主机名无法解析为IPv4地址时抛出
+     */
+    private static long hostToNum(String host) throws UnknownHostException {
+        if (host.matches("[0-9.]+")) {
+            return ipAddressToNum(host);
+        }
+        InetAddress address = resolvedHosts.get(host);
+        if (address == null) {
+            for (InetAddress candidate : InetAddress.getAllByName(host)) {
+                if (candidate instanceof Inet4Address) {
+                    address = candidate;
+                    break;
+                }
+            }
+            if (address == null) {
+                throw new UnknownHostException("No IPv4 address for " + host);
+            }
+            resolvedHosts.put(host, address);
+        }
+        byte[] bytes = address.getAddress();
+        return ((bytes[0] & 0xFFL) << 24) | ((bytes[1] & 0xFFL) << 16) | ((bytes[2] & 0xFFL) << 8) | (bytes[3] & 0xFFL);
+    }
+    
+    /**
+     * 将IP地址转换为长整型数字表示，结果为无符号32位值 [0, 2^32)
      * @param ipAddress IP地址字符串
      * @return 长整型IP地址
      */
@@ -144,21 +694,28 @@ public class PortScanner {
         long result = 0;
         for (int i = 0; i < 4; i++) {
             int segment = Integer.parseInt(ipSegments[i]);
-            result |= (segment << (24 - i * 8));
+            if (segment < 0 || segment > 255) {
+                throw new IllegalArgumentException("Invalid IP address format");
+            }
+            // 先转为long再移位，避免首段≥128时int符号扩展为负数
+            result |= ((long) segment << (24 - i * 8));
         }
         return result;
     }
     
     /**
-     * 将长整型IP地址转换为字符串表示
+     * 由长整型IP地址直接构造InetAddress，不经过任何名称解析
      * @param ipNum 长整型IP地址
-     * @return IP地址字符串
+     * @return IP地址对象
      */
-    private static String ipNumToAddress(long ipNum) {
-        return ((ipNum >> 24) & 0xFF) + "." +
-               ((ipNum >> 16) & 0xFF) + "." +
-               ((ipNum >> 8) & 0xFF) + "." +
-               (ipNum & 0xFF);
+    private static InetAddress ipNumToInetAddress(long ipNum) {
+        byte[] bytes = {(byte) (ipNum >> 24), (byte) (ipNum >> 16), (byte) (ipNum >> 8), (byte) ipNum};
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            // 只有地址长度错误时才会抛出，4字节不会发生
+            throw new IllegalStateException(e);
+        }
     }
     
     /**
@@ -173,48 +730,31 @@ public class PortScanner {
     }
     
     /**
-     * 端口扫描线程类 - 负责扫描指定IP的部分端口范围
+     * 端口扫描线程类 - 从共享调度器中不断取出探测并阻塞执行
      */
     static class PortScanThread extends Thread {
-        private String ipAddress;
-        private int startPort;
-        private int endPort;
+        private ProbeScheduler scheduler;
         private CountDownLatch latch;
         
         /**
          * 构造函数
-         * @param ipAddress 目标IP地址
-         * @param startPort 起始端口
-         * @param endPort 终止端口
+         * @param scheduler 探测调度器
          * @param latch 计数器锁
          */
-        public PortScanThread(String ipAddress, int startPort, int endPort, CountDownLatch latch) {
-            this.ipAddress = ipAddress;
-            this.startPort = startPort;
-            this.endPort = endPort;
+        public PortScanThread(ProbeScheduler scheduler, CountDownLatch latch) {
+            this.scheduler = scheduler;
             this.latch = latch;
         }
         
         /**
-         * 线程执行方法 - 扫描分配的端口范围
+         * 线程执行方法 - 扫描调度器分配的探测直到全部取完
          */
         @Override
         public void run() {
             try {
-                for (int port = startPort; port <= endPort; port++) {
-                    try (Socket socket = new Socket()) {
-                        // 尝试连接目标端口，设置超时时间
-                        socket.connect(new InetSocketAddress(ipAddress, port), TIMEOUT);
-                        
-                        // 连接成功，端口开放
-                        String message = "Host: " + ipAddress + " - Port " + port + " is open!";
-                        System.out.println(message);
-                    } catch (IOException e) {
-                        // 连接失败，端口关闭或不可达
-                        if (!onlyShowOpenPorts) {
-                            System.out.println("Host: " + ipAddress + " - Port " + port + " is closed");
-                        }
-                    }
+                Probe probe;
+                while ((probe = scheduler.next()) != null) {
+                    scheduler.complete(probe, probePort(probe));
                 }
             } finally {
                 // 任务完成，减少计数器
@@ -222,4 +762,2859 @@ public class PortScanner {
             }
         }
     }
-}    
+    
+    /**
+     * 探测调度器 - 将所有目标主机的 (主机, 端口) 探测排成一个全局序列供各引擎并发取用
+     * 每HOST_GROUP_SIZE个主机为一组，组内按端口轮流探测各主机，因此慢主机不会阻塞其他主机
+     * 分片时第i片只取序号 i, i+N, i+2N, ...，各片互不相交且合起来恰好覆盖整个空间
+     * 探测发出前按全局速率限速，并检查单主机与单子网的并发上限，已满时暂缓该探测先发其他探测
+     */
+    static class ProbeScheduler {
+        // pollPacked没有可发出的探测时的返回值
+        static final long NONE = -1;
+        // 每次取探测时最多重试的暂缓探测数，以及暂缓队列的容量
+        private static final int RETRY_BATCH = 8;
+        private static final int MAX_DEFERRED = 4096;
+        // 等待重探的探测超过该数量时不再等待首轮结束，以限制内存占用
+        private static final int MAX_RETRY_QUEUE = 65536;
+        
+        private final TargetSet targets;
+        // 本调度器负责的主机：目标集合中下标为 hostOffset + i * hostStride 的主机，共hostCount个
+        private final long hostOffset;
+        private final long hostStride;
+        private final long hostCount;
+        private final int startPort;
+        // 按顺序探测的端口，为null时依次探测整个范围
+        private final int[] portOrder;
+        // 每个主机探测的端口数，以及结果位图覆盖的端口范围大小
+        private final int portCount;
+        private final int rangeSize;
+        private final long total;
+        private final AtomicLong cursor = new AtomicLong();
+        private final ScanResults results;
+        // 随机排列，为null时按主机组顺序
+        private final ProbePermutation permutation;
+        // 本分片的下标（从0开始）、分片数及本分片的探测数
+        private final int shard;
+        private final int shards;
+        private final long shardTotal;
+        // 仍有未完成探测的主机，以目标集合中的下标为键
+        private final ConcurrentHashMap<Long, HostState> activeHosts = new ConcurrentHashMap<>();
+        // 仍有未完成探测的主机按槽号登记，NIO引擎只以 (主机槽号, 端口, 重探次数) 表示探测，槽在主机结束后复用
+        // 槽号总是经由activeHosts取得主机之后才被其他线程读到，因此数组元素无需单独同步
+        private final Object hostSlotLock = new Object();
+        private volatile HostState[] hostSlots = new HostState[64];
+        private int[] freeHostSlots = new int[64];
+        private int freeHostSlotCount;
+        private int nextHostSlot;
+        // 各子网进行中的探测数，拆分后的调度器共用
+        private final ConcurrentHashMap<InetAddress, AtomicInteger> subnets;
+        // 因并发上限暂缓的探测
+        private final ConcurrentLinkedDeque<Probe> deferred = new ConcurrentLinkedDeque<>();
+        private final AtomicInteger deferredCount = new AtomicInteger();
+        // 超时后等待重探的探测，新探测取完或积压过多时才发出
+        private final ConcurrentLinkedQueue<Probe> retries = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger retryCount = new AtomicInteger();
+        private final AtomicLong retried = new AtomicLong();
+        // 因主机被放弃而跳过的探测数
+        private final AtomicLong skipped = new AtomicLong();
+        // 尚未发出的探测数（含暂缓和等待重探的探测），以及已发出尚未完成的探测数
+        private final AtomicLong undispatched = new AtomicLong();
+        private final AtomicLong outstanding = new AtomicLong();
+        // 全局限速器，为null表示不限速
+        private final RateLimiter limiter;
+        // 自适应并发控制器，为null表示并发数固定
+        private final ConcurrencyController controller;
+        // 主机发现时收集存活主机的队列及每个端口的固定超时（毫秒），普通扫描时为null和0
+        private final ConcurrentLinkedQueue<InetAddress> liveHosts;
+        private final int fixedTimeout;
+        
+        /**
+         * 构造函数
+         * @param targets 目标主机集合
+         * @param startPort 起始端口
+         * @param endPort 终止端口
+         * @param portOrder 按顺序探测的端口（均在范围内），为null时依次探测整个范围
+         * @param results 保存探测结果的结果集
+         * @param permutation 探测顺序的随机排列，为null时按主机组顺序
+         * @param shard 本分片的下标，从0开始
+         * @param shards 分片数，不分片时为1
+         */
+        public ProbeScheduler(TargetSet targets, int startPort, int endPort, int[] portOrder, ScanResults results,
+                              ProbePermutation permutation, int shard, int shards) {
+            this(targets, startPort, endPort, portOrder, results, permutation, shard, shards, 0, 1, new ConcurrentHashMap<>(), null, 0);
+        }
+        
+        /**
+         * 构造主机发现用的调度器：按顺序探测各主机的常用端口，主机首次应答（开放或RST）即确认存活并跳过其余端口
+         * 不记录也不输出端口结果，超时的端口不重探
+         * @param targets 目标主机集合
+         * @param ports 探测的端口
+         * @param timeoutMillis 每个端口的连接超时（毫秒）
+         * @param liveHosts 收集存活主机的队列
+         */
+        public ProbeScheduler(TargetSet targets, int[] ports, int timeoutMillis, ConcurrentLinkedQueue<InetAddress> liveHosts) {
+            this(targets, Arrays.stream(ports).min().getAsInt(), Arrays.stream(ports).max().getAsInt(), ports, null,
+                    null, 0, 1, 0, 1, new ConcurrentHashMap<>(), liveHosts, timeoutMillis);
+        }
+        
+        /**
+         * 构造只负责部分主机的调度器，限速与并发上限按hostStride均分
+         */
+        private ProbeScheduler(TargetSet targets, int startPort, int endPort, int[] portOrder, ScanResults results,
+                               ProbePermutation permutation, int shard, int shards,
+                               long hostOffset, long hostStride, ConcurrentHashMap<InetAddress, AtomicInteger> subnets,
+                               ConcurrentLinkedQueue<InetAddress> liveHosts, int fixedTimeout) {
+            this.results = results;
+            this.liveHosts = liveHosts;
+            this.fixedTimeout = fixedTimeout;
+            this.permutation = permutation;
+            this.targets = targets;
+            this.hostOffset = hostOffset;
+            this.hostStride = hostStride;
+            this.hostCount = (targets.size() - hostOffset + hostStride - 1) / hostStride;
+            this.subnets = subnets;
+            this.startPort = startPort;
+            this.portOrder = portOrder;
+            this.rangeSize = endPort - startPort + 1;
+            this.portCount = portOrder != null ? portOrder.length : rangeSize;
+            this.total = hostCount * portCount;
+            this.shard = shard;
+            this.shards = shards;
+            this.shardTotal = total > shard ? (total - shard + shards - 1) / shards : 0;
+            this.undispatched.set(shardTotal);
+            this.limiter = probeRate > 0 ? new RateLimiter(probeRate / hostStride) : null;
+            this.controller = adaptiveConcurrency
+                    ? new ConcurrencyController((int) ((maxInFlight + hostStride - 1) / hostStride)) : null;
+        }
+        
+        /**
+         * 按主机下标交错拆分为多个互不相交的调度器，供各事件循环独立使用
+         * 同一主机只属于一个调度器，其往返时间估计和结果位图不会被多个线程争用
+         * 分片扫描时不拆分，以免改变各分片的探测划分
+         * @param loops 期望的份数
+         * @return 拆分后的调度器，不拆分时只含本调度器
+         */
+        public ProbeScheduler[] split(int loops) {
+            int count = (int) Math.min(loops, hostCount);
+            if (count <= 1 || shards > 1) {
+                return new ProbeScheduler[]{this};
+            }
+            ProbeScheduler[] parts = new ProbeScheduler[count];
+            for (int i = 0; i < count; i++) {
+                long partHosts = (hostCount - i + count - 1) / count;
+                ProbePermutation partPermutation = permutation != null ? new ProbePermutation(partHosts * portCount, seed) : null;
+                parts[i] = new ProbeScheduler(targets, startPort, startPort + rangeSize - 1, portOrder, results,
+                        partPermutation, 0, 1, i, count, subnets, liveHosts, fixedTimeout);
+            }
+            return parts;
+        }
+        
+        /**
+         * @return 本分片的探测总数
+         */
+        public long size() {
+            return shardTotal;
+        }
+        
+        /**
+         * 取出下一个探测，需要等待限速或并发时阻塞当前线程，线程安全
+         * @return 下一个探测，全部发出后返回null
+         */
+        public Probe next() {
+            while (true) {
+                Probe probe = poll();
+                if (probe != null) {
+                    return probe;
+                }
+                if (exhausted()) {
+                    return null;
+                }
+                LockSupport.parkNanos(Math.max(100_000L, Math.min(delayNanos(), 10_000_000L)));
+            }
+        }
+        
+        /**
+         * 取出一个现在可以发出的探测，不阻塞，线程安全
+         * @return 探测，当前受限速或并发限制或已全部发出时返回null
+         */
+        public Probe poll() {
+            long probe = pollPacked();
+            return probe == NONE ? null : new Probe(host(hostSlot(probe)), port(probe), attempt(probe));
+        }
+        
+        /**
+         * 取出一个现在可以发出的探测，以打包的 (主机槽号, 端口, 重探次数) 返回，不创建探测对象，不阻塞，线程安全
+         * @return 打包的探测，当前受限速或并发限制或已全部发出时返回NONE
+         */
+        public long pollPacked() {
+            if (limiter != null && limiter.delayNanos() > 0) {
+                return NONE;
+            }
+            if (controller != null && !controller.tryAcquire()) {
+                return NONE;
+            }
+            long probe = pollDispatchable();
+            if (probe == NONE && controller != null) {
+                controller.cancel();
+            }
+            return probe;
+        }
+        
+        /**
+         * 从暂缓队列或新序号中找出一个未超出主机与子网并发上限的探测
+         * 新序号可以直接发出时不创建探测对象，只有暂缓或等待重探的探测才以Probe保存在队列中
+         * @return 打包的探测，没有可发出的探测时返回NONE
+         */
+        private long pollDispatchable() {
+            // 先重试暂缓的探测
+            for (int i = 0; i < RETRY_BATCH; i++) {
+                Probe probe = deferred.pollFirst();
+                if (probe == null) {
+                    break;
+                }
+                deferredCount.decrementAndGet();
+                if (probe.host.abandoned && skip(probe.host, probe.port)) {
+                    continue;
+                }
+                if (dispatch(probe.host)) {
+                    return pack(probe.host.slot, probe.port, probe.attempt);
+                }
+                defer(probe);
+            }
+            // 首轮结束或积压过多时发出重探
+            if (retryCount.get() > MAX_RETRY_QUEUE || cursor.get() >= shardTotal) {
+                Probe probe;
+                while (deferredCount.get() < MAX_DEFERRED && (probe = retries.poll()) != null) {
+                    retryCount.decrementAndGet();
+                    if (probe.host.abandoned) {
+                        // 主机已放弃，保留首轮的超时结果
+                        undispatched.decrementAndGet();
+                        record(probe.host, probe.port, PortState.FILTERED);
+                        continue;
+                    }
+                    if (dispatch(probe.host)) {
+                        return pack(probe.host.slot, probe.port, probe.attempt);
+                    }
+                    defer(probe);
+                }
+            }
+            while (deferredCount.get() < MAX_DEFERRED) {
+                long probe = take();
+                if (probe == NONE) {
+                    break;
+                }
+                HostState host = host(hostSlot(probe));
+                int port = port(probe);
+                if (host.abandoned && skip(host, port)) {
+                    continue;
+                }
+                if (dispatch(host)) {
+                    return probe;
+                }
+                defer(new Probe(host, port, 0));
+            }
+            return NONE;
+        }
+        
+        /**
+         * 重探开启时，进行中的探测超时后还会产生新的探测；放弃主机开启时，进行中的探测应答后会重探已跳过的端口，
+         * 因此须等其全部完成
+         * 先读进行中的探测数：complete总是先增加待发出数再减少进行中数，两者不会同时读到0
+         * @return 是否所有探测都已发出
+         */
+        public boolean exhausted() {
+            boolean mayRequeue = probeRetries > 0 || deadHostTimeouts > 0 || deadHostUnreachable > 0;
+            if (mayRequeue && outstanding.get() > 0) {
+                return false;
+            }
+            return undispatched.get() == 0;
+        }
+        
+        /**
+         * @return 距离限速器允许下一个探测的时间（纳秒）
+         */
+        public long delayNanos() {
+            return limiter == null ? 0 : limiter.delayNanos();
+        }
+        
+        /**
+         * 归还已取出但未能发起的探测（如文件描述符耗尽），之后会重新发出
+         * @param probe 打包的探测
+         */
+        public void requeue(long probe) {
+            HostState host = host(hostSlot(probe));
+            release(host);
+            if (controller != null) {
+                controller.cancel();
+            }
+            undispatched.incrementAndGet();
+            outstanding.decrementAndGet();
+            deferredCount.incrementAndGet();
+            deferred.addFirst(new Probe(host, port(probe), attempt(probe)));
+        }
+        
+        /**
+         * 放入暂缓队列末尾
+         */
+        private void defer(Probe probe) {
+            deferredCount.incrementAndGet();
+            deferred.addLast(probe);
+        }
+        
+        /**
+         * 检查并占用主机与子网的并发名额，成功后计入限速
+         * @return 是否可以发出
+         */
+        private boolean dispatch(HostState host) {
+            if (hostConcurrency > 0 && !tryIncrement(host.inFlight, hostConcurrency)) {
+                return false;
+            }
+            if (subnetConcurrency > 0 && !tryIncrement(host.subnetInFlight, subnetConcurrency)) {
+                if (hostConcurrency > 0) {
+                    host.inFlight.decrementAndGet();
+                }
+                return false;
+            }
+            if (limiter != null) {
+                limiter.acquire();
+            }
+            outstanding.incrementAndGet();
+            undispatched.decrementAndGet();
+            return true;
+        }
+        
+        /**
+         * 释放探测占用的并发名额
+         */
+        private void release(HostState host) {
+            if (hostConcurrency > 0) {
+                host.inFlight.decrementAndGet();
+            }
+            if (subnetConcurrency > 0) {
+                host.subnetInFlight.decrementAndGet();
+            }
+        }
+        
+        /**
+         * 计数未达上限时加一
+         */
+        private static boolean tryIncrement(AtomicInteger counter, int limit) {
+            int current;
+            do {
+                current = counter.get();
+                if (current >= limit) {
+                    return false;
+                }
+            } while (!counter.compareAndSet(current, current + 1));
+            return true;
+        }
+        
+        /**
+         * 按序号取出下一个新探测
+         * @return 打包的探测，序号用完时返回NONE
+         */
+        private long take() {
+            long taken = cursor.getAndIncrement();
+            if (taken >= shardTotal) {
+                return NONE;
+            }
+            long seq = shard + taken * shards;
+            long index;
+            int port;
+            if (permutation != null) {
+                // 随机顺序：序号经排列映射到整个 (主机, 端口) 空间
+                long position = permutation.apply(seq);
+                index = position % hostCount;
+                port = portAt((int) (position / hostCount));
+            } else {
+                // 定位所在主机组，组内先遍历主机再遍历端口
+                long groupSpan = (long) HOST_GROUP_SIZE * portCount;
+                long groupStart = seq / groupSpan * HOST_GROUP_SIZE;
+                long offset = seq % groupSpan;
+                long groupHosts = Math.min(HOST_GROUP_SIZE, hostCount - groupStart);
+                index = groupStart + offset % groupHosts;
+                port = portAt((int) (offset / groupHosts));
+            }
+            
+            HostState host = activeHosts.computeIfAbsent(hostOffset + index * hostStride, this::newHost);
+            return pack(host.slot, port, 0);
+        }
+        
+        /**
+         * @param offset 端口序号
+         * @return 第offset个探测的端口
+         */
+        private int portAt(int offset) {
+            return portOrder != null ? portOrder[offset] : startPort + offset;
+        }
+        
+        /**
+         * 创建主机状态，每个主机只构造一次地址对象
+         * @param index 主机在目标集合中的下标
+         * @return 主机状态
+         */
+        private HostState newHost(long index) {
+            InetAddress address = targets.get(index);
+            // 随机顺序分片时每个主机在本片中的探测数无法直接算出，由finish统一结束
+            int expected = shards == 1 ? portCount : permutation == null ? shardProbes(index) : -1;
+            AtomicInteger subnet = subnetConcurrency > 0
+                    ? subnets.computeIfAbsent(TargetSet.subnetOf(address), key -> new AtomicInteger())
+                    : null;
+            PortStateMap ports = liveHosts == null ? results.host(address, startPort, rangeSize) : null;
+            HostState host = new HostState(index, address, expected, ports, subnet, fixedTimeout);
+            host.slot = registerHost(host);
+            return host;
+        }
+        
+        /**
+         * 为主机分配槽号，优先复用已结束主机的槽
+         * @param host 主机状态
+         * @return 槽号
+         */
+        private int registerHost(HostState host) {
+            synchronized (hostSlotLock) {
+                int slot;
+                if (freeHostSlotCount > 0) {
+                    slot = freeHostSlots[--freeHostSlotCount];
+                } else {
+                    slot = nextHostSlot++;
+                    if (slot == hostSlots.length) {
+                        hostSlots = Arrays.copyOf(hostSlots, slot * 2);
+                    }
+                }
+                hostSlots[slot] = host;
+                return slot;
+            }
+        }
+        
+        /**
+         * 主机结束后归还其槽号
+         * @param host 主机状态
+         */
+        private void unregisterHost(HostState host) {
+            synchronized (hostSlotLock) {
+                hostSlots[host.slot] = null;
+                if (freeHostSlotCount == freeHostSlots.length) {
+                    freeHostSlots = Arrays.copyOf(freeHostSlots, freeHostSlotCount * 2);
+                }
+                freeHostSlots[freeHostSlotCount++] = host.slot;
+            }
+        }
+        
+        /**
+         * @param slot 主机槽号
+         * @return 该槽号对应的进行中的主机
+         */
+        public HostState host(int slot) {
+            return hostSlots[slot];
+        }
+        
+        /**
+         * 将探测打包为一个long：高32位为主机槽号，其次16位为重探次数，低16位为端口
+         */
+        static long pack(int hostSlot, int port, int attempt) {
+            return (long) hostSlot << 32 | (long) attempt << 16 | port;
+        }
+        
+        static int hostSlot(long probe) {
+            return (int) (probe >>> 32);
+        }
+        
+        static int port(long probe) {
+            return (int) probe & 0xFFFF;
+        }
+        
+        static int attempt(long probe) {
+            return (int) (probe >>> 16) & 0xFFFF;
+        }
+        
+        /**
+         * 按主机组顺序分片时，计算主机在本分片中的探测数
+         * 主机的第p个端口的序号为 组起点*端口数 + 组内偏移 + p*组内主机数，
+         * 序号按分片数取模等于shard的端口属于本片，取模结果以 分片数/gcd 为周期重复
+         * @param index 主机在目标集合中的下标
+         * @return 探测数
+         */
+        private int shardProbes(long index) {
+            long groupStart = index / HOST_GROUP_SIZE * HOST_GROUP_SIZE;
+            long groupHosts = Math.min(HOST_GROUP_SIZE, hostCount - groupStart);
+            long base = groupStart * portCount + (index - groupStart);
+            int period = (int) (shards / gcd(groupHosts % shards, shards));
+            int count = 0;
+            for (int p = 0; p < Math.min(period, portCount); p++) {
+                if ((base + p * groupHosts) % shards == shard) {
+                    // 周期内的每个解在端口范围内重复出现
+                    count += (portCount - 1 - p) / period + 1;
+                }
+            }
+            return count;
+        }
+        
+        private static long gcd(long a, long b) {
+            return b == 0 ? a : gcd(b, a % b);
+        }
+        
+        /**
+         * 记录探测结果，主机所有端口完成后压缩其结果并输出完成信息
+         * @param probe 已完成的探测
+         * @param state 端口状态
+         */
+        public void complete(Probe probe, PortState state) {
+            complete(probe.host, probe.port, probe.attempt, state);
+        }
+        
+        /**
+         * 记录以打包形式取出的探测的结果，线程安全
+         * @param hostSlot 主机槽号
+         * @param port 端口
+         * @param attempt 第几次重探
+         * @param state 端口状态
+         */
+        public void complete(int hostSlot, int port, int attempt, PortState state) {
+            complete(host(hostSlot), port, attempt, state);
+        }
+        
+        private void complete(HostState host, int port, int attempt, PortState state) {
+            release(host);
+            if (controller != null) {
+                // 曾经应答过的主机发生超时，更可能是探测被丢弃而不是端口被过滤
+                controller.release(state == PortState.FILTERED && host.rtt.hasSamples());
+            }
+            if (liveHosts != null) {
+                discovered(host, state);
+                outstanding.decrementAndGet();
+                record(host, port, state);
+                return;
+            }
+            checkHealth(host, state);
+            if (state == PortState.FILTERED && attempt < probeRetries && !host.abandoned) {
+                // 超时的端口稍后以更长的超时重探，暂不记录结果
+                undispatched.incrementAndGet();
+                retryCount.incrementAndGet();
+                retried.incrementAndGet();
+                retries.add(new Probe(host, port, attempt + 1));
+                outstanding.decrementAndGet();
+                return;
+            }
+            outstanding.decrementAndGet();
+            record(host, port, state);
+        }
+        
+        /**
+         * 记录端口的最终结果，主机所有端口完成后结束该主机
+         * @param host 主机状态
+         * @param port 端口
+         * @param state 端口状态
+         */
+        private void record(HostState host, int port, PortState state) {
+            if (liveHosts == null) {
+                printResult(host.address, port, state);
+                host.ports.set(port, state);
+                results.countProbe();
+            }
+            if (host.remaining.decrementAndGet() == 0) {
+                finishHost(host);
+            }
+        }
+        
+        /**
+         * 主机发现：主机首次应答时加入存活主机，并放弃其余端口
+         * @param host 主机状态
+         * @param state 刚完成的探测结果
+         */
+        private void discovered(HostState host, PortState state) {
+            if (state != PortState.OPEN && state != PortState.CLOSED) {
+                return;
+            }
+            synchronized (host) {
+                if (host.answered) {
+                    return;
+                }
+                host.answered = true;
+                host.abandoned = true;
+            }
+            liveHosts.add(host.inetAddress);
+        }
+        
+        /**
+         * 更新主机健康状态：从未应答的主机超时或不可达次数达到阈值时放弃该主机，
+         * 已放弃的主机之后又应答时恢复该主机
+         * @param host 主机状态
+         * @param state 刚完成的探测结果
+         */
+        private void checkHealth(HostState host, PortState state) {
+            if (state == PortState.OPEN || state == PortState.CLOSED) {
+                host.answered = true;
+                if (host.abandoned) {
+                    revive(host);
+                }
+                return;
+            }
+            if (host.answered || host.abandoned) {
+                return;
+            }
+            int threshold = state == PortState.UNREACHABLE ? deadHostUnreachable : deadHostTimeouts;
+            AtomicInteger counter = state == PortState.UNREACHABLE ? host.unreachable : host.timeouts;
+            if (threshold > 0 && counter.incrementAndGet() >= threshold) {
+                host.deadState = state;
+                host.abandoned = true;
+                resultSink.write("Host " + host.address + " is " + (state == PortState.UNREACHABLE ? "unreachable" : "not responding")
+                        + ", skipping remaining ports");
+            }
+        }
+        
+        /**
+         * 跳过已放弃主机的探测，不发出连接也不逐个记录结果，主机结束时统一记录
+         * 跳过的端口记入主机的位集合，主机之后应答时据此重探
+         * @param host 主机状态
+         * @param port 端口
+         * @return 是否已跳过，主机已恢复时返回false，探测照常发出
+         */
+        private boolean skip(HostState host, int port) {
+            synchronized (host) {
+                if (!host.abandoned) {
+                    return false;
+                }
+                // 主机发现时主机已确认存活，跳过的端口无需记录
+                if (liveHosts == null) {
+                    if (host.skippedPorts == null) {
+                        host.skippedPorts = new BitSet();
+                    }
+                    host.skippedPorts.set(port - startPort);
+                }
+            }
+            undispatched.decrementAndGet();
+            skipped.incrementAndGet();
+            if (host.remaining.decrementAndGet() == 0) {
+                finishHost(host);
+            }
+            return true;
+        }
+        
+        /**
+         * 恢复已放弃的主机：放弃时仍在进行中的探测收到了应答，已跳过的端口放入重探队列重新探测
+         * 在complete记录结果之前调用，此时当前端口尚未完成，主机不会已经结束
+         * @param host 主机状态
+         */
+        private void revive(HostState host) {
+            BitSet ports;
+            synchronized (host) {
+                if (!host.abandoned) {
+                    return;
+                }
+                host.abandoned = false;
+                ports = host.skippedPorts;
+                host.skippedPorts = null;
+                if (ports != null) {
+                    // 先恢复未完成计数，再放入队列
+                    host.remaining.addAndGet(ports.cardinality());
+                }
+            }
+            resultSink.write("Host " + host.address + " answered, probing skipped ports again");
+            if (ports == null) {
+                return;
+            }
+            skipped.addAndGet(-ports.cardinality());
+            undispatched.addAndGet(ports.cardinality());
+            retryCount.addAndGet(ports.cardinality());
+            for (int offset = ports.nextSetBit(0); offset >= 0; offset = ports.nextSetBit(offset + 1)) {
+                retries.add(new Probe(host, startPort + offset, 0));
+            }
+        }
+        
+        /**
+         * 所有探测结束后调用，结束尚未结束的主机（分片扫描时）
+         */
+        public void finish() {
+            for (HostState host : activeHosts.values()) {
+                finishHost(host);
+            }
+            if (retried.get() > 0) {
+                resultSink.write("Sent " + retried.get() + " re-probes for timed-out ports");
+            }
+            if (skipped.get() > 0) {
+                resultSink.write("Skipped " + skipped.get() + " ports on abandoned hosts");
+            }
+        }
+        
+        /**
+         * 结束主机：压缩其结果并输出完成信息
+         * @param host 主机状态
+         */
+        private void finishHost(HostState host) {
+            activeHosts.remove(host.index);
+            unregisterHost(host);
+            if (liveHosts != null) {
+                return;
+            }
+            BitSet skippedPorts;
+            synchronized (host) {
+                skippedPorts = host.skippedPorts;
+                host.skippedPorts = null;
+            }
+            if (host.abandoned && skippedPorts != null) {
+                if (portOrder == null && shards == 1) {
+                    // 放弃的主机整体记为触发放弃的状态，不为跳过的端口保留位图
+                    host.ports.fill(host.deadState);
+                } else {
+                    // 只扫描部分端口（--top-ports或分片）时，范围内其余端口并未扫描，只记录跳过的端口
+                    for (int offset = skippedPorts.nextSetBit(0); offset >= 0; offset = skippedPorts.nextSetBit(offset + 1)) {
+                        host.ports.set(startPort + offset, host.deadState);
+                    }
+                }
+                // 跳过的端口计入探测数以保持汇总一致
+                results.countProbes(skippedPorts.cardinality());
+            }
+            host.ports.compact();
+            results.release(host.inetAddress);
+            resultSink.write("Scan completed for IP " + host.address);
+        }
+    }
+    
+    /**
+     * 扫描中的主机状态
+     */
+    static class HostState {
+        // 主机在目标集合中的下标，以及在调度器中的槽号
+        private final long index;
+        private int slot;
+        private final String address;
+        // 预先构造的地址对象（IPv4或IPv6），探测时直接使用，无需解析字符串
+        private final InetAddress inetAddress;
+        // 尚未得出结果的端口数
+        private final AtomicInteger remaining;
+        // 往返时间估计，决定该主机的连接超时；固定超时（毫秒）大于0时不使用估计
+        private final RttEstimator rtt = new RttEstimator();
+        private final int fixedTimeout;
+        // 该主机的端口状态
+        private final PortStateMap ports;
+        // 该主机及其所在子网进行中的探测数，仅在设置了并发上限时使用
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger subnetInFlight;
+        // 健康状态：是否应答过（开放或RST），未应答时的超时与不可达次数，是否已放弃
+        private volatile boolean answered;
+        private volatile boolean abandoned;
+        // 触发放弃的状态（FILTERED或UNREACHABLE），以及跳过的端口（相对起始端口的偏移，由主机对象加锁保护）
+        private volatile PortState deadState;
+        private BitSet skippedPorts;
+        private final AtomicInteger timeouts = new AtomicInteger();
+        private final AtomicInteger unreachable = new AtomicInteger();
+        
+        /**
+         * 构造函数
+         * @param index 主机在目标集合中的下标
+         * @param inetAddress 主机地址
+         * @param portCount 需要扫描的端口数，-1表示不按计数判断完成
+         * @param ports 保存该主机端口状态的位图，主机发现时为null
+         * @param subnetInFlight 所在子网进行中的探测数，未限制子网并发时为null
+         * @param fixedTimeout 固定的连接超时（毫秒），0表示按往返时间估计
+         */
+        public HostState(long index, InetAddress inetAddress, int portCount, PortStateMap ports, AtomicInteger subnetInFlight,
+                         int fixedTimeout) {
+            this.ports = ports;
+            this.fixedTimeout = fixedTimeout;
+            this.subnetInFlight = subnetInFlight;
+            this.index = index;
+            this.address = inetAddress.getHostAddress();
+            this.inetAddress = inetAddress;
+            this.remaining = new AtomicInteger(portCount);
+        }
+        
+        /**
+         * 计算探测的连接超时：首轮不超过--sweep-timeout，重探时主机超时逐次加倍
+         * @param attempt 第几次重探，首轮为0
+         * @return 超时（毫秒）
+         */
+        public int timeoutMillis(int attempt) {
+            if (fixedTimeout > 0) {
+                return fixedTimeout;
+            }
+            int timeout = rtt.timeoutMillis();
+            if (attempt == 0) {
+                return sweepTimeout > 0 ? Math.min(timeout, sweepTimeout) : timeout;
+            }
+            return (int) Math.min(maxTimeout, (long) timeout << attempt);
+        }
+    }
+    
+    /**
+     * 往返时间估计器 - 按TCP重传超时（RFC 6298）的方式维护平滑往返时间与偏差
+     * 样本来自成功的连接和RST应答，超时不产生样本
+     */
+    static class RttEstimator {
+        // 平滑往返时间与往返时间偏差（纳秒），为0表示尚无样本
+        private long smoothedRtt;
+        private long rttVariance;
+        
+        /**
+         * 加入一个往返时间样本
+         * @param rttNanos 往返时间（纳秒）
+         */
+        public synchronized void addSample(long rttNanos) {
+            if (smoothedRtt == 0) {
+                smoothedRtt = Math.max(1, rttNanos);
+                rttVariance = rttNanos / 2;
+            } else {
+                rttVariance += (Math.abs(smoothedRtt - rttNanos) - rttVariance) / 4;
+                smoothedRtt = Math.max(1, smoothedRtt + (rttNanos - smoothedRtt) / 8);
+            }
+        }
+        
+        /**
+         * @return 是否已有往返时间样本，即主机曾经应答过
+         */
+        public synchronized boolean hasSamples() {
+            return smoothedRtt != 0;
+        }
+        
+        /**
+         * 计算当前的连接超时：平滑往返时间 + 4倍偏差，并限制在上下限之间
+         * @return 连接超时（毫秒）
+         */
+        public synchronized int timeoutMillis() {
+            long timeout = smoothedRtt == 0 ? TIMEOUT : (smoothedRtt + 4 * rttVariance) / 1_000_000L;
+            return (int) Math.max(minTimeout, Math.min(maxTimeout, timeout));
+        }
+    }
+    
+    /**
+     * 单个 (主机, 端口) 探测，供阻塞引擎使用以及在暂缓、重探队列中排队；NIO引擎以打包的long表示探测，不创建该对象
+     */
+    static class Probe {
+        private final HostState host;
+        private final int port;
+        // 第几次重探，首轮为0
+        private final int attempt;
+        
+        /**
+         * 构造函数
+         * @param host 目标主机
+         * @param port 目标端口
+         * @param attempt 第几次重探，首轮为0
+         */
+        public Probe(HostState host, int port, int attempt) {
+            this.host = host;
+            this.port = port;
+            this.attempt = attempt;
+        }
+        
+        /**
+         * @return 本次探测的连接超时（毫秒）
+         */
+        public int timeoutMillis() {
+            return host.timeoutMillis(attempt);
+        }
+    }
+    
+    /**
+     * 非阻塞扫描引擎 - 单线程通过Selector同时维持大量未完成的连接
+     * 发起非阻塞connect后注册OP_CONNECT，由finishConnect判定结果，超过主机的自适应超时未完成视为被过滤，超时由时间轮管理
+     */
+    static class NioScanEngine {
+        private final int maxInFlight;
+        
+        /**
+         * 构造函数
+         * @param maxInFlight 同时进行中的最大连接数
+         */
+        public NioScanEngine(int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+        }
+        
+        /**
+         * 执行调度器中的全部探测，阻塞直到所有探测得出结果
+         * @param scheduler 探测调度器
+         * @throws IOException Selector无法打开时抛出
+         */
+        public void scan(ProbeScheduler scheduler) throws IOException {
+            // 进行中的连接保存在预先分配的槽表中，各主机超时不同，由时间轮按截止时间管理
+            ProbeTable table = new ProbeTable(maxInFlight);
+            TimingWheel wheel = new TimingWheel(table, System.nanoTime());
+            int limit = maxInFlight;
+            int inFlight = 0;
+            boolean exhausted = false;
+            // 没有进行中的连接时已刷新过一次已关闭通道的描述符
+            boolean flushed = false;
+            // 描述符耗尽时归还探测要创建Probe对象，从类目录运行时届时已无法打开类文件，因此预先加载
+            Class<?> requeuedType = Probe.class;
+            
+            try (Selector selector = Selector.open()) {
+                while (!exhausted || inFlight > 0) {
+                    // 补充新的连接直到达到并发上限或受到限速
+                    while (!exhausted && inFlight < limit) {
+                        long probe = scheduler.pollPacked();
+                        if (probe == ProbeScheduler.NONE) {
+                            exhausted = scheduler.exhausted();
+                            break;
+                        }
+                        int hostSlot = ProbeScheduler.hostSlot(probe);
+                        int port = ProbeScheduler.port(probe);
+                        int attempt = ProbeScheduler.attempt(probe);
+                        HostState host = scheduler.host(hostSlot);
+                        SocketChannel channel;
+                        try {
+                            channel = SocketChannel.open();
+                            flushed = false;
+                            // 之前因描述符耗尽降低过上限时，每成功打开一个连接上限加一，随描述符释放逐步恢复
+                            if (limit < maxInFlight) {
+                                limit++;
+                            }
+                        } catch (IOException e) {
+                            // 文件描述符耗尽时把并发上限减半，等待已有连接完成后再继续
+                            scheduler.requeue(probe);
+                            if (inFlight == 0) {
+                                if (flushed) {
+                                    throw e;
+                                }
+                                // 已注册的通道关闭后，描述符要到下一次选择时才真正释放
+                                selector.selectNow();
+                                flushed = true;
+                                continue;
+                            }
+                            limit = Math.max(1, inFlight / 2);
+                            break;
+                        }
+                        try {
+                            channel.configureBlocking(false);
+                            if (resetOnClose) {
+                                channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+                            }
+                            // 往返时间从发起连接之前开始计算，connect本身的耗时也计入
+                            long start = System.nanoTime();
+                            if (channel.connect(new InetSocketAddress(host.inetAddress, port))) {
+                                scheduler.complete(hostSlot, port, attempt, PortState.OPEN);
+                                channel.close();
+                            } else {
+                                int slot = table.acquire(channel, hostSlot, port, attempt, start, host.timeoutMillis(attempt));
+                                channel.register(selector, SelectionKey.OP_CONNECT, table.slotIds[slot]);
+                                wheel.add(slot);
+                                inFlight++;
+                            }
+                        } catch (IOException e) {
+                            scheduler.complete(hostSlot, port, attempt, classifyFailure(e));
+                            channel.close();
+                        }
+                    }
+                    
+                    // 等待到最早的截止时间，受限速时最多等到允许下一个探测
+                    long waitMillis = wheel.isEmpty() ? 1 : wheel.millisUntilNext(System.nanoTime());
+                    if (!exhausted && inFlight < limit) {
+                        waitMillis = Math.min(waitMillis, scheduler.delayNanos() / 1_000_000L);
+                    }
+                    selector.select(Math.max(1, waitMillis));
+                    
+                    // 处理完成的连接
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        int slot = (Integer) key.attachment();
+                        RttEstimator rtt = scheduler.host(table.hosts[slot]).rtt;
+                        PortState state;
+                        try {
+                            if (!table.channels[slot].finishConnect()) {
+                                // 尚未完成（伪唤醒），继续等待
+                                continue;
+                            }
+                            rtt.addSample(System.nanoTime() - table.startTimes[slot]);
+                            state = PortState.OPEN;
+                        } catch (IOException e) {
+                            state = classifyFailure(e);
+                            if (state == PortState.CLOSED) {
+                                // 收到RST，同样是一次完整的往返
+                                rtt.addSample(System.nanoTime() - table.startTimes[slot]);
+                            }
+                        }
+                        scheduler.complete(table.hosts[slot], table.ports[slot], table.attempts[slot], state);
+                        wheel.remove(slot);
+                        table.release(slot);
+                        inFlight--;
+                    }
+                    
+                    // 清理超时的连接，超时未应答视为被过滤
+                    long now = System.nanoTime();
+                    int expired;
+                    while ((expired = wheel.pollExpired(now)) >= 0) {
+                        scheduler.complete(table.hosts[expired], table.ports[expired], table.attempts[expired],
+                                expiredState(table.channels[expired]));
+                        table.release(expired);
+                        inFlight--;
+                    }
+                }
+            }
+        }
+        
+        /**
+         * 判定已过截止时间的连接：事件循环繁忙时，连接可能在本轮选择之后才完成，尚未被报告，
+         * 因此先非阻塞地确认一次，仍未完成才视为被过滤
+         * @param channel 连接通道
+         * @return 端口状态
+         */
+        private static PortState expiredState(SocketChannel channel) {
+            try {
+                return channel.finishConnect() ? PortState.OPEN : PortState.FILTERED;
+            } catch (IOException e) {
+                return classifyFailure(e);
+            }
+        }
+    }
+    
+    /**
+     * 进行中连接的槽表 - 按槽号把每个连接的主机槽号、端口、重探次数、开始时间、截止时间和时间轮链接
+     * 保存在预先分配的基本类型数组中（结构数组），不为探测、连接或时间轮节点创建对象，槽在连接结束后复用
+     * 并非零分配：每个连接仍需一个连接地址InetSocketAddress和一次性的SocketChannel，
+     * 因并发上限暂缓或等待重探的探测也仍以Probe对象排队
+     */
+    static class ProbeTable {
+        private final SocketChannel[] channels;
+        // 探测的目标：调度器中的主机槽号、端口及第几次重探
+        private final int[] hosts;
+        private final int[] ports;
+        private final int[] attempts;
+        private final long[] startTimes;
+        private final long[] deadlines;
+        // 时间轮中的到期刻度及同一槽内的前后节点，-1表示没有
+        private final long[] ticks;
+        private final int[] prev;
+        private final int[] next;
+        // 作为SelectionKey附件的槽号，预先装箱
+        private final Integer[] slotIds;
+        // 空闲槽栈
+        private final int[] free;
+        private int freeCount;
+        
+        /**
+         * 构造函数
+         * @param capacity 槽数，即同时进行中的最大连接数
+         */
+        public ProbeTable(int capacity) {
+            channels = new SocketChannel[capacity];
+            hosts = new int[capacity];
+            ports = new int[capacity];
+            attempts = new int[capacity];
+            startTimes = new long[capacity];
+            deadlines = new long[capacity];
+            ticks = new long[capacity];
+            prev = new int[capacity];
+            next = new int[capacity];
+            slotIds = new Integer[capacity];
+            free = new int[capacity];
+            for (int i = 0; i < capacity; i++) {
+                slotIds[i] = i;
+                free[i] = capacity - 1 - i;
+            }
+            freeCount = capacity;
+        }
+        
+        /**
+         * 占用一个空闲槽保存连接
+         * @param channel 连接通道
+         * @param hostSlot 调度器中的主机槽号
+         * @param port 端口
+         * @param attempt 第几次重探
+         * @param startTime 发起连接的时间（System.nanoTime）
+         * @param timeoutMillis 连接超时时间（毫秒）
+         * @return 槽号
+         */
+        public int acquire(SocketChannel channel, int hostSlot, int port, int attempt, long startTime, int timeoutMillis) {
+            int slot = free[--freeCount];
+            channels[slot] = channel;
+            hosts[slot] = hostSlot;
+            ports[slot] = port;
+            attempts[slot] = attempt;
+            startTimes[slot] = startTime;
+            deadlines[slot] = startTime + timeoutMillis * 1_000_000L;
+            return slot;
+        }
+        
+        /**
+         * 关闭通道并归还槽
+         * @param slot 槽号
+         */
+        public void release(int slot) {
+            try {
+                channels[slot].close();
+            } catch (IOException e) {
+                // 关闭失败不影响扫描结果
+            }
+            channels[slot] = null;
+            free[freeCount++] = slot;
+        }
+    }
+    
+    /**
+     * 哈希时间轮 - 管理进行中连接的超时，插入与摘除均为O(1)，由事件循环推进
+     * 每个槽是以槽表中的槽号为节点的双向链表，不为每个探测创建定时器对象
+     * 超出一圈的截止时间按刻度落入同一槽，扫描到时比较刻度决定是否到期
+     */
+    static class TimingWheel {
+        // 刻度1毫秒，4096个槽覆盖约4秒，足以容纳默认的最大超时
+        private static final long TICK_NANOS = 1_000_000L;
+        private static final int WHEEL_SIZE = 4096;
+        // 计算下次唤醒时最多向前查看的槽数
+        private static final int LOOKAHEAD = 64;
+        
+        private final ProbeTable table;
+        // 各槽链表的首个连接，-1表示空
+        private final int[] buckets = new int[WHEEL_SIZE];
+        private final long origin;
+        // 尚未处理完的刻度
+        private long currentTick;
+        private int size;
+        
+        /**
+         * 构造函数
+         * @param table 保存连接截止时间与链表节点的槽表
+         * @param origin 刻度0对应的时间（System.nanoTime）
+         */
+        public TimingWheel(ProbeTable table, long origin) {
+            this.table = table;
+            this.origin = origin;
+            Arrays.fill(buckets, -1);
+        }
+        
+        /**
+         * @return 轮中是否没有连接
+         */
+        public boolean isEmpty() {
+            return size == 0;
+        }
+        
+        /**
+         * 加入连接，到期刻度向上取整，保证不会提前超时
+         * @param slot 连接所在的槽号
+         */
+        public void add(int slot) {
+            long tick = Math.max((table.deadlines[slot] - origin + TICK_NANOS - 1) / TICK_NANOS, currentTick);
+            int bucket = (int) (tick & (WHEEL_SIZE - 1));
+            table.ticks[slot] = tick;
+            table.prev[slot] = -1;
+            table.next[slot] = buckets[bucket];
+            if (buckets[bucket] >= 0) {
+                table.prev[buckets[bucket]] = slot;
+            }
+            buckets[bucket] = slot;
+            size++;
+        }
+        
+        /**
+         * 从轮中摘除连接
+         * @param slot 已在轮中的连接的槽号
+         */
+        public void remove(int slot) {
+            int prev = table.prev[slot];
+            int next = table.next[slot];
+            if (prev >= 0) {
+                table.next[prev] = next;
+            } else {
+                buckets[(int) (table.ticks[slot] & (WHEEL_SIZE - 1))] = next;
+            }
+            if (next >= 0) {
+                table.prev[next] = prev;
+            }
+            size--;
+        }
+        
+        /**
+         * 推进到当前时间并取出一个已到期的连接
+         * @param now 当前时间（System.nanoTime）
+         * @return 到期连接的槽号（已从轮中摘除），没有时返回-1
+         */
+        public int pollExpired(long now) {
+            long nowTick = (now - origin) / TICK_NANOS;
+            while (size > 0) {
+                for (int slot = buckets[(int) (currentTick & (WHEEL_SIZE - 1))]; slot >= 0; slot = table.next[slot]) {
+                    if (table.ticks[slot] <= currentTick) {
+                        remove(slot);
+                        return slot;
+                    }
+                }
+                if (currentTick >= nowTick) {
+                    return -1;
+                }
+                currentTick++;
+            }
+            currentTick = Math.max(currentTick, nowTick);
+            return -1;
+        }
+        
+        /**
+         * 估计距离下一个可能到期的连接的时间
+         * @param now 当前时间（System.nanoTime）
+         * @return 毫秒数，前方若干槽均为空时返回查看的范围
+         */
+        public long millisUntilNext(long now) {
+            for (int i = 0; i < LOOKAHEAD; i++) {
+                long tick = currentTick + i;
+                if (buckets[(int) (tick & (WHEEL_SIZE - 1))] >= 0) {
+                    return Math.max(0, (origin + tick * TICK_NANOS - now) / 1_000_000L);
+                }
+            }
+            return LOOKAHEAD * TICK_NANOS / 1_000_000L;
+        }
+    }
+    
+    /**
+     * 虚拟线程扫描引擎 - 每个端口一个虚拟线程执行阻塞连接，由信号量限制同时进行的连接数
+     * 运行时不支持虚拟线程时退化为PLATFORM_THREAD_LIMIT个平台线程的固定线程池
+     */
+    static class VirtualThreadScanEngine {
+        // 不支持虚拟线程时最多创建的平台线程数
+        private static final int PLATFORM_THREAD_LIMIT = 256;
+        // 运行时是否支持虚拟线程，类加载时实际创建一次执行器来判定：
+        // Java 19/20未开启预览特性时方法存在但调用失败，只检查方法是否存在会误判
+        private static final boolean SUPPORTED = detectSupport();
+        
+        private final int maxInFlight;
+        
+        /**
+         * 构造函数
+         * @param maxInFlight 同时进行中的最大连接数
+         */
+        public VirtualThreadScanEngine(int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+        }
+        
+        /**
+         * 执行调度器中的全部探测，阻塞直到所有探测得出结果
+         * @param scheduler 探测调度器
+         * @throws InterruptedException 等待时被中断
+         */
+        public void scan(ProbeScheduler scheduler) throws InterruptedException {
+            Semaphore permits = new Semaphore(concurrency(maxInFlight));
+            ExecutorService executor = newVirtualThreadExecutor();
+            try {
+                while (true) {
+                    permits.acquire();
+                    Probe probe = scheduler.next();
+                    if (probe == null) {
+                        permits.release();
+                        break;
+                    }
+                    executor.execute(() -> {
+                        try {
+                            scheduler.complete(probe, probePort(probe));
+                        } finally {
+                            permits.release();
+                        }
+                    });
+                }
+            } finally {
+                executor.shutdown();
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+        }
+        
+        /**
+         * @return 运行时是否支持虚拟线程，启动信息、并发数与执行器均以此为准
+         */
+        static boolean isSupported() {
+            return SUPPORTED;
+        }
+        
+        /**
+         * 尝试创建一个虚拟线程执行器，成功即支持
+         * @return 是否支持虚拟线程
+         */
+        private static boolean detectSupport() {
+            ExecutorService executor = tryVirtualThreadExecutor();
+            if (executor == null) {
+                return false;
+            }
+            executor.shutdown();
+            return true;
+        }
+        
+        /**
+         * 实际可同时进行的阻塞连接数，退化为平台线程时不超过平台线程上限
+         * @param maxInFlight 期望的并发数
+         * @return 并发数
+         */
+        static int concurrency(int maxInFlight) {
+            return isSupported() ? maxInFlight : Math.min(maxInFlight, PLATFORM_THREAD_LIMIT);
+        }
+        
+        /**
+         * 创建每任务一个虚拟线程的执行器，不支持时返回大小为平台线程上限的固定线程池
+         * @return 执行器
+         */
+        static ExecutorService newVirtualThreadExecutor() {
+            ExecutorService executor = SUPPORTED ? tryVirtualThreadExecutor() : null;
+            return executor != null ? executor : Executors.newFixedThreadPool(PLATFORM_THREAD_LIMIT);
+        }
+        
+        /**
+         * 通过反射调用Executors.newVirtualThreadPerTaskExecutor，以便在Java 17上编译
+         * 方法不存在或调用失败（如未开启预览特性时抛出UnsupportedOperationException）都返回null
+         * @return 执行器，失败时返回null
+         */
+        private static ExecutorService tryVirtualThreadExecutor() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                return null;
+            }
+        }
+    }
+    
+    /**
+     * 端口开放频率表 - 互联网扫描中最常开放的TCP端口，按开放可能性从高到低排列
+     */
+    static class PortFrequency {
+        // 排名即可能性，表外端口可能性视为相同且低于表中所有端口
+        private static final int[] RANKED_PORTS = {
+                80, 23, 443, 21, 22, 25, 3389, 110, 445, 139,
+                143, 53, 135, 3306, 8080, 1723, 111, 995, 993, 5900,
+                1025, 587, 8888, 199, 1720, 465, 548, 113, 81, 6001,
+                10000, 514, 5060, 179, 1026, 2000, 8443, 8000, 32768, 554,
+                26, 1433, 49152, 2001, 515, 8008, 49154, 1027, 5666, 646,
+                5000, 5631, 631, 49153, 8081, 2049, 88, 79, 5800, 106,
+                2121, 1110, 49155, 6000, 513, 990, 5357, 427, 49156, 543,
+                544, 5101, 144, 7, 389, 8009, 3128, 444, 9999, 5009,
+                7070, 5190, 3000, 5432, 1900, 3986, 13, 1029, 9, 5051,
+                6646, 49157, 1028, 873, 1755, 2717, 4899, 9100, 119, 37
+        };
+        
+        /**
+         * 按开放可能性排列端口范围：表中端口按排名在前，其余端口按端口号在后
+         * @param startPort 起始端口
+         * @param endPort 终止端口
+         * @param limit 最多保留的端口数，0表示不限制
+         * @return 排列后的端口
+         */
+        public static int[] order(int startPort, int endPort, int limit) {
+            int rangeSize = endPort - startPort + 1;
+            int count = limit > 0 ? Math.min(limit, rangeSize) : rangeSize;
+            int[] ports = new int[count];
+            boolean[] ranked = new boolean[rangeSize];
+            int n = 0;
+            for (int port : RANKED_PORTS) {
+                if (n < count && port >= startPort && port <= endPort) {
+                    ports[n++] = port;
+                    ranked[port - startPort] = true;
+                }
+            }
+            for (int port = startPort; n < count; port++) {
+                if (!ranked[port - startPort]) {
+                    ports[n++] = port;
+                }
+            }
+            return ports;
+        }
+    }
+    
+    /**
+     * 主机发现 - 通过NIO引擎以较短的超时连接各主机的少量常用端口，任一端口应答（开放或RST）即认为主机存活
+     * 常用端口均无应答时可选用InetAddress.isReachable（有权限时为ICMP回显，否则为TCP echo端口）
+     */
+    static class HostDiscovery {
+        // 发现阶段探测的常用端口，按存活主机上开放或应答的可能性排列
+        private static final int[] DISCOVERY_PORTS = {80, 443, 22, 445, 3389, 8080};
+        
+        private final int maxInFlight;
+        private final int timeoutMillis;
+        private final boolean icmp;
+        
+        /**
+         * 构造函数
+         * @param maxInFlight 同时探测的最大主机数
+         * @param timeoutMillis 每个端口的连接超时（毫秒）
+         * @param icmp 常用端口无应答时是否再用isReachable确认
+         */
+        public HostDiscovery(int maxInFlight, int timeoutMillis, boolean icmp) {
+            this.maxInFlight = maxInFlight;
+            this.timeoutMillis = timeoutMillis;
+            this.icmp = icmp;
+        }
+        
+        /**
+         * 找出目标集合中的存活主机
+         * 常用端口的探测由NIO引擎完成，同时进行的连接数只受maxInFlight限制；主机首次应答后不再探测其余端口
+         * @param targets 目标集合
+         * @return 存活主机组成的集合
+         * @throws IOException Selector无法打开时抛出
+         * @throws InterruptedException 等待时被中断
+         */
+        public TargetSet discover(TargetSet targets) throws IOException, InterruptedException {
+            ConcurrentLinkedQueue<InetAddress> live = new ConcurrentLinkedQueue<>();
+            new NioScanEngine(maxInFlight).scan(new ProbeScheduler(targets, DISCOVERY_PORTS, timeoutMillis, live));
+            if (icmp) {
+                confirmByIcmp(targets, live);
+            }
+            return TargetSet.of(new ArrayList<>(live));
+        }
+        
+        /**
+         * 常用端口均无应答的主机再用isReachable确认，isReachable只能阻塞调用，在线程池中并发执行
+         * @param targets 目标集合
+         * @param live 已发现的存活主机，确认存活的主机加入其中
+         * @throws InterruptedException 等待时被中断
+         */
+        private void confirmByIcmp(TargetSet targets, ConcurrentLinkedQueue<InetAddress> live) throws InterruptedException {
+            Set<InetAddress> answered = new HashSet<>(live);
+            Semaphore permits = new Semaphore(VirtualThreadScanEngine.concurrency(maxInFlight));
+            ExecutorService executor = VirtualThreadScanEngine.newVirtualThreadExecutor();
+            try {
+                for (long i = 0; i < targets.size(); i++) {
+                    InetAddress address = targets.get(i);
+                    if (answered.contains(address)) {
+                        continue;
+                    }
+                    permits.acquire();
+                    executor.execute(() -> {
+                        try {
+                            if (address.isReachable(timeoutMillis)) {
+                                live.add(address);
+                            }
+                        } catch (IOException e) {
+                            // 无法确认，视为不存活
+                        } finally {
+                            permits.release();
+                        }
+                    });
+                }
+            } finally {
+                executor.shutdown();
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+    
+    /**
+     * 结果输出器 - 探测线程通过无锁队列提交结果行，由单个写线程批量写入带缓冲的标准输出
+     * 避免大量线程在System.out.println的同步锁上竞争
+     */
+    static class ResultSink implements Runnable {
+        // 每批最多写出的行数
+        private static final int BATCH_SIZE = 1024;
+        
+        private final ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<>();
+        private final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        private final AtomicLong submitted = new AtomicLong();
+        private final Thread writerThread = new Thread(this, "result-writer");
+        private volatile long written;
+        private volatile boolean closed;
+        
+        /**
+         * 构造函数 - 启动写线程
+         */
+        public ResultSink() {
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+        
+        /**
+         * 提交一行输出，不阻塞调用线程
+         * @param line 输出行
+         */
+        public void write(String line) {
+            queue.offer(line);
+            submitted.incrementAndGet();
+        }
+        
+        /**
+         * 等待已提交的所有行写出
+         */
+        public void flush() {
+            long target = submitted.get();
+            while (written < target && writerThread.isAlive()) {
+                LockSupport.unpark(writerThread);
+                LockSupport.parkNanos(100_000L);
+            }
+        }
+        
+        /**
+         * 写出剩余内容并停止写线程
+         */
+        public void close() {
+            closed = true;
+            LockSupport.unpark(writerThread);
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        /**
+         * 写线程执行方法 - 批量取出队列中的行写出后统一刷新
+         */
+        @Override
+        public void run() {
+            while (true) {
+                boolean stopping = closed;
+                int count = 0;
+                String line;
+                try {
+                    while (count < BATCH_SIZE && (line = queue.poll()) != null) {
+                        writer.write(line);
+                        writer.newLine();
+                        count++;
+                    }
+                    if (count > 0) {
+                        writer.flush();
+                    }
+                } catch (IOException e) {
+                    // 标准输出不可写时丢弃结果，继续推进计数以免flush永久等待
+                }
+                written += count;
+                if (count == 0) {
+                    if (stopping) {
+                        return;
+                    }
+                    LockSupport.parkNanos(1_000_000L);
+                }
+            }
+        }
+    }
+    
+    /**
+     * 端口状态，序号即位图中的4位编码
+     * CLOSED为收到RST，FILTERED为超时无应答，UNREACHABLE为路由失败等探测未到达主机的情况
+     */
+    enum PortState {
+        UNKNOWN, OPEN, CLOSED, FILTERED, UNREACHABLE
+    }
+    
+    /**
+     * 单个主机的端口状态位图 - 每个端口4位，全端口扫描约32KB
+     * 位图在出现第一个非关闭端口时才分配；主机扫描完成后若所有端口状态相同，释放位图只保留该状态
+     */
+    static class PortStateMap {
+        private static final PortState[] STATES = PortState.values();
+        
+        private final int startPort;
+        private final int portCount;
+        private volatile AtomicLongArray bits;
+        // 位图未分配或释放后所有端口共同的状态，未探测的端口按关闭处理
+        private volatile PortState uniformState = PortState.CLOSED;
+        
+        /**
+         * 构造函数
+         * @param startPort 起始端口
+         * @param portCount 端口数量
+         */
+        public PortStateMap(int startPort, int portCount) {
+            this.startPort = startPort;
+            this.portCount = portCount;
+        }
+        
+        /**
+         * 设置端口状态，线程安全
+         * @param port 端口
+         * @param state 状态
+         */
+        public void set(int port, PortState state) {
+            AtomicLongArray current = bits;
+            if (current == null) {
+                if (state == uniformState) {
+                    // 与统一状态相同，无需分配位图
+                    return;
+                }
+                // 按统一状态展开位图
+                synchronized (this) {
+                    current = bits;
+                    if (current == null) {
+                        current = expand();
+                    }
+                }
+            }
+            int bit = (port - startPort) * 4;
+            int shift = bit & 63;
+            long mask = 15L << shift;
+            long value = (long) state.ordinal() << shift;
+            long word;
+            do {
+                word = current.get(bit >> 6);
+            } while (!current.compareAndSet(bit >> 6, word, (word & ~mask) | value));
+        }
+        
+        /**
+         * 查询端口状态
+         * @param port 端口
+         * @return 状态，不在范围内返回UNKNOWN
+         */
+        public PortState get(int port) {
+            if (port < startPort || port >= startPort + portCount) {
+                return PortState.UNKNOWN;
+            }
+            AtomicLongArray current = bits;
+            if (current == null) {
+                return uniformState;
+            }
+            int bit = (port - startPort) * 4;
+            return STATES[(int) (current.get(bit >> 6) >>> (bit & 63)) & 15];
+        }
+        
+        /**
+         * 统计处于指定状态的端口数
+         * @param state 状态
+         * @return 端口数
+         */
+        public int count(PortState state) {
+            if (bits == null) {
+                return uniformState == state ? portCount : 0;
+            }
+            int count = 0;
+            for (int port = startPort; port < startPort + portCount; port++) {
+                if (get(port) == state) {
+                    count++;
+                }
+            }
+            return count;
+        }
+        
+        /**
+         * 所有端口状态相同时释放位图
+         */
+        public synchronized void compact() {
+            if (bits == null) {
+                return;
+            }
+            PortState first = get(startPort);
+            for (int port = startPort + 1; port < startPort + portCount; port++) {
+                if (get(port) != first) {
+                    return;
+                }
+            }
+            uniformState = first;
+            bits = null;
+        }
+        
+        /**
+         * 将所有端口设为同一状态
+         * @param state 状态
+         */
+        public synchronized void fill(PortState state) {
+            uniformState = state;
+            bits = null;
+        }
+        
+        /**
+         * 按统一状态建立位图
+         * @return 新位图
+         */
+        private AtomicLongArray expand() {
+            AtomicLongArray expanded = new AtomicLongArray((portCount * 4 + 63) / 64);
+            long pattern = 0;
+            for (int shift = 0; shift < 64; shift += 4) {
+                pattern |= (long) uniformState.ordinal() << shift;
+            }
+            for (int i = 0; i < expanded.length(); i++) {
+                expanded.set(i, pattern);
+            }
+            bits = expanded;
+            return expanded;
+        }
+    }
+    
+    /**
+     * 端口状态变化回调
+     */
+    interface PortChangeListener {
+        void onChange(InetAddress address, int port, PortState before, PortState after);
+    }
+    
+    /**
+     * 扫描结果集 - 以主机地址为键保存各主机的端口状态位图，IPv4与IPv6主机共用
+     * 支持汇总、导出为文本以及与另一结果集对比
+     * 所有端口均关闭的主机扫描完成后只计数不保存，大范围稀疏扫描时内存只与有结果的主机数相关
+     */
+    static class ScanResults {
+        // 按地址数值排序，IPv4（映射地址）在IPv6之前
+        private static final Comparator<InetAddress> ADDRESS_ORDER = (a, b) -> TargetSet.compare(
+                TargetSet.high(a), TargetSet.low(a), TargetSet.high(b), TargetSet.low(b));
+        
+        private final ConcurrentHashMap<InetAddress, PortStateMap> hosts = new ConcurrentHashMap<>();
+        // 扫描范围，为null表示从文件读取的结果
+        private final TargetSet scope;
+        private final int startPort;
+        private final int endPort;
+        // 已释放的全关闭主机数及其端口数
+        private final AtomicLong closedHosts = new AtomicLong();
+        private final AtomicLong closedHostPorts = new AtomicLong();
+        // 已得出结果的探测数
+        private final AtomicLong probes = new AtomicLong();
+        
+        /**
+         * 构造函数 - 从文件读取的结果集
+         */
+        public ScanResults() {
+            this(null, 0, 65535);
+        }
+        
+        /**
+         * 构造函数
+         * @param scope 扫描的目标集合
+         * @param startPort 起始端口
+         * @param endPort 终止端口
+         */
+        public ScanResults(TargetSet scope, int startPort, int endPort) {
+            this.scope = scope;
+            this.startPort = startPort;
+            this.endPort = endPort;
+        }
+        
+        /**
+         * 主机扫描完成后调用，所有端口均关闭时移出结果集只保留计数
+         * @param address 主机地址
+         */
+        public void release(InetAddress address) {
+            PortStateMap ports = hosts.get(address);
+            if (ports != null && ports.bits == null && ports.uniformState == PortState.CLOSED) {
+                hosts.remove(address);
+                closedHosts.incrementAndGet();
+                closedHostPorts.addAndGet(ports.portCount);
+            }
+        }
+        
+        /**
+         * 获取或创建主机的端口状态位图
+         * @param address 主机地址
+         * @param startPort 起始端口
+         * @param portCount 端口数量
+         * @return 端口状态位图
+         */
+        public PortStateMap host(InetAddress address, int startPort, int portCount) {
+            return hosts.computeIfAbsent(address, key -> new PortStateMap(startPort, portCount));
+        }
+        
+        /**
+         * 查询端口状态
+         * @param address 主机地址
+         * @param port 端口
+         * @return 状态，未扫描返回UNKNOWN
+         */
+        public PortState get(InetAddress address, int port) {
+            PortStateMap ports = hosts.get(address);
+            return ports == null ? PortState.UNKNOWN : ports.get(port);
+        }
+        
+        /**
+         * 记录一次已得出结果的探测
+         */
+        public void countProbe() {
+            probes.incrementAndGet();
+        }
+        
+        /**
+         * @return 已得出结果的探测数
+         */
+        public long probeCount() {
+            return probes.get();
+        }
+        
+        /**
+         * 记录多次已得出结果的探测
+         * @param count 探测数
+         */
+        public void countProbes(long count) {
+            probes.addAndGet(count);
+        }
+        
+        /**
+         * @return 结果集中的主机数，有扫描范围时为范围内的主机数
+         */
+        public long hostCount() {
+            return scope != null ? scope.size() : hosts.mappingCount() + closedHosts.get();
+        }
+        
+        /**
+         * 遍历所有非关闭且已知状态的端口
+         * @param listener 回调，before参数固定为UNKNOWN
+         */
+        public void forEachReported(PortChangeListener listener) {
+            for (Map.Entry<InetAddress, PortStateMap> entry : hosts.entrySet()) {
+                PortStateMap ports = entry.getValue();
+                if (ports.bits == null && ports.uniformState == PortState.CLOSED) {
+                    continue;
+                }
+                for (int port = ports.startPort; port < ports.startPort + ports.portCount; port++) {
+                    PortState state = ports.get(port);
+                    if (state != PortState.CLOSED && state != PortState.UNKNOWN) {
+                        listener.onChange(entry.getKey(), port, PortState.UNKNOWN, state);
+                    }
+                }
+            }
+        }
+        
+        /**
+         * 统计所有主机中处于指定状态的端口数
+         * @param state 状态
+         * @return 端口数
+         */
+        public long count(PortState state) {
+            long count = state == PortState.CLOSED ? closedHostPorts.get() : 0;
+            for (PortStateMap ports : hosts.values()) {
+                count += ports.count(state);
+            }
+            return count;
+        }
+        
+        /**
+         * @return 按地址排序的主机结果
+         */
+        private TreeMap<InetAddress, PortStateMap> sortedHosts() {
+            TreeMap<InetAddress, PortStateMap> sorted = new TreeMap<>(ADDRESS_ORDER);
+            sorted.putAll(hosts);
+            return sorted;
+        }
+        
+        /**
+         * 导出开放、被过滤和不可达的端口，每行格式为 IP,端口,状态，未列出的端口视为关闭
+         * 所有端口状态相同且非关闭的主机（如被放弃的主机）只写一行 IP,*,状态
+         * @param fileName 文件名
+         * @throws IOException 写入失败时抛出
+         */
+        public void export(String fileName) throws IOException {
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(fileName))) {
+                for (Map.Entry<InetAddress, PortStateMap> entry : sortedHosts().entrySet()) {
+                    PortStateMap ports = entry.getValue();
+                    if (ports.bits == null) {
+                        if (ports.uniformState != PortState.CLOSED) {
+                            writer.write(entry.getKey().getHostAddress() + ",*," + ports.uniformState);
+                            writer.newLine();
+                        }
+                        continue;
+                    }
+                    for (int port = ports.startPort; port < ports.startPort + ports.portCount; port++) {
+                        PortState state = ports.get(port);
+                        if (state != PortState.CLOSED && state != PortState.UNKNOWN) {
+                            writer.write(entry.getKey().getHostAddress() + "," + port + "," + state);
+                            writer.newLine();
+                        }
+                    }
+                }
+            }
+        }
+        
+        /**
+         * 读取export导出的结果，文件中出现的主机其余端口视为关闭
+         * 每行按逗号分为 IP,端口,状态 三个字段（IPv6地址只含冒号不含逗号），端口为*时表示该主机所有端口
+         * @param fileName 文件名
+         * @return 结果集
+         * @throws IOException 读取失败或格式错误时抛出
+         */
+        public static ScanResults load(String fileName) throws IOException {
+            ScanResults results = new ScanResults();
+            try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split(",");
+                    if (fields.length != 3) {
+                        throw new IOException("Invalid result line: " + line);
+                    }
+                    InetAddress address = TargetSet.parseLiteral(fields[0]);
+                    PortStateMap ports = results.hosts.get(address);
+                    if (ports == null) {
+                        ports = results.host(address, 0, 65536);
+                        ports.fill(PortState.CLOSED);
+                    }
+                    if ("*".equals(fields[1])) {
+                        ports.fill(PortState.valueOf(fields[2]));
+                    } else {
+                        ports.set(Integer.parseInt(fields[1]), PortState.valueOf(fields[2]));
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid result file: " + e.getMessage());
+            }
+            return results;
+        }
+        
+        /**
+         * 与旧结果集对比本结果集中已扫描的端口，开放状态发生变化时回调
+         * 旧结果中没有的主机视为全部关闭
+         * @param baseline 旧结果集
+         * @param listener 变化回调
+         */
+        public void diff(ScanResults baseline, PortChangeListener listener) {
+            // 旧结果中有、本次已扫描但因全部关闭而释放的主机
+            if (scope != null) {
+                for (Map.Entry<InetAddress, PortStateMap> entry : baseline.sortedHosts().entrySet()) {
+                    InetAddress address = entry.getKey();
+                    if (hosts.containsKey(address) || !scope.contains(address)) {
+                        continue;
+                    }
+                    for (int port = startPort; port <= endPort; port++) {
+                        if (entry.getValue().get(port) == PortState.OPEN) {
+                            listener.onChange(address, port, PortState.OPEN, PortState.CLOSED);
+                        }
+                    }
+                }
+            }
+            for (Map.Entry<InetAddress, PortStateMap> entry : sortedHosts().entrySet()) {
+                PortStateMap ports = entry.getValue();
+                for (int port = ports.startPort; port < ports.startPort + ports.portCount; port++) {
+                    PortState after = ports.get(port);
+                    PortState before = baseline.get(entry.getKey(), port);
+                    if (before == PortState.UNKNOWN) {
+                        before = PortState.CLOSED;
+                    }
+                    if (after != PortState.UNKNOWN && (before == PortState.OPEN) != (after == PortState.OPEN)) {
+                        listener.onChange(entry.getKey(), port, before, after);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * 目标主机集合 - 有序、互不相交的闭区间集合，地址统一表示为两个long组成的128位无符号数
+     * IPv4地址映射到 ::ffff:0:0/96（低位为ipAddressToNum的数字IP），IPv6地址按原值表示
+     * 支持CIDR、区间、单个地址/主机名以及以!开头的排除项，按下标或游标惰性取出地址，不展开为列表
+     */
+    static class TargetSet {
+        // IPv4映射地址的低64位前缀 ::ffff:0:0
+        private static final long IPV4_MAPPED = 0xFFFF_0000_0000L;
+        // IPv6前缀或区间允许的最大地址数，保证计数不溢出
+        private static final long MAX_IPV6_BLOCK = 1L << 32;
+        
+        // 区间起止（含）的高64位与低64位，按起点升序且互不相邻
+        private final long[] startHigh;
+        private final long[] startLow;
+        private final long[] endHigh;
+        private final long[] endLow;
+        // offsets[i] 为第i个区间之前的地址总数
+        private final long[] offsets;
+        private final long size;
+        
+        /**
+         * 构造函数，区间须已规范化
+         */
+        private TargetSet(long[] startHigh, long[] startLow, long[] endHigh, long[] endLow) {
+            this.startHigh = startHigh;
+            this.startLow = startLow;
+            this.endHigh = endHigh;
+            this.endLow = endLow;
+            this.offsets = new long[startHigh.length];
+            long total = 0;
+            for (int i = 0; i < startHigh.length; i++) {
+                offsets[i] = total;
+                // 单个区间不超过 2^32 个地址，低位之差即为长度
+                total += endLow[i] - startLow[i] + 1;
+            }
+            this.size = total;
+        }
+        
+        /**
+         * 创建单个IPv4区间的集合
+         * @param start 起始IP数字
+         * @param end 终止IP数字
+         * @return 目标集合
+         */
+        public static TargetSet of(long start, long end) {
+            return new TargetSet(new long[]{0}, new long[]{IPV4_MAPPED | start}, new long[]{0}, new long[]{IPV4_MAPPED | end});
+        }
+        
+        /**
+         * 创建由若干地址组成的集合
+         * @param addresses IPv4或IPv6地址
+         * @return 目标集合
+         */
+        public static TargetSet of(List<InetAddress> addresses) {
+            List<long[]> ranges = new ArrayList<>(addresses.size());
+            for (InetAddress address : addresses) {
+                ranges.add(new long[]{high(address), low(address), high(address), low(address)});
+            }
+            return normalize(ranges);
+        }
+        
+        /**
+         * 解析逗号分隔的目标列表，!开头的项从结果中排除
+         * 每项可以是IPv4/IPv6地址、地址/前缀长度、起始地址-终止地址或主机名
+         * @param spec 目标列表
+         * @return 目标集合
+         */
+        public static TargetSet parse(String spec) {
+            List<long[]> included = new ArrayList<>();
+            List<long[]> excluded = new ArrayList<>();
+            for (String item : spec.split("[,\\s]+")) {
+                if (item.isEmpty()) {
+                    continue;
+                }
+                if (item.startsWith("!")) {
+                    excluded.add(parseItem(item.substring(1)));
+                } else {
+                    included.add(parseItem(item));
+                }
+            }
+            return normalize(included).subtract(normalize(excluded));
+        }
+        
+        /**
+         * 读取目标列表文件，每行可包含一个或多个以逗号分隔的目标，#开头为注释
+         * @param fileName 文件名
+         * @return 文件中所有目标的集合
+         * @throws IOException 读取失败时抛出
+         */
+        public static TargetSet load(String fileName) throws IOException {
+            List<long[]> ranges = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    for (String item : line.split("[,\\s]+")) {
+                        ranges.add(parseItem(item));
+                    }
+                }
+            }
+            return normalize(ranges);
+        }
+        
+        /**
+         * 解析单个目标项
+         * @param item 目标项
+         * @return 闭区间 {起点高位, 起点低位, 终点高位, 终点低位}
+         */
+        private static long[] parseItem(String item) {
+            int slash = item.indexOf('/');
+            if (slash >= 0) {
+                InetAddress base = parseHost(item.substring(0, slash));
+                int prefix = Integer.parseInt(item.substring(slash + 1));
+                // IPv4前缀长度换算到128位空间
+                int bits = base.getAddress().length == 4 ? prefix + 96 : prefix;
+                if (prefix < 0 || bits > 128 || 128 - bits > 32) {
+                    throw new IllegalArgumentException("Invalid prefix length in " + item);
+                }
+                long blockSize = 1L << (128 - bits);
+                long low = low(base) & -blockSize;
+                return new long[]{high(base), low, high(base), low + blockSize - 1};
+            }
+            // 只有两侧都是IP字面量时才是地址段，主机名本身常含连字符
+            int dash = item.indexOf('-');
+            if (dash >= 0 && isLiteral(item.substring(0, dash)) && isLiteral(item.substring(dash + 1))) {
+                InetAddress first = parseLiteral(item.substring(0, dash));
+                InetAddress last = parseLiteral(item.substring(dash + 1));
+                if (compare(high(first), low(first), high(last), low(last)) > 0) {
+                    InetAddress temp = first;
+                    first = last;
+                    last = temp;
+                }
+                if (high(first) != high(last) || low(last) - low(first) >= MAX_IPV6_BLOCK) {
+                    throw new IllegalArgumentException("IP range too large: " + item);
+                }
+                return new long[]{high(first), low(first), high(last), low(last)};
+            }
+            InetAddress address = parseHost(item);
+            return new long[]{high(address), low(address), high(address), low(address)};
+        }
+        
+        /**
+         * 解析单个地址，IPv4主机名经缓存解析
+         * @param host IPv4/IPv6地址或主机名
+         * @return 地址
+         */
+        private static InetAddress parseHost(String host) {
+            if (host.indexOf(':') >= 0) {
+                return parseLiteral(host);
+            }
+            try {
+                return ipNumToInetAddress(hostToNum(host));
+            } catch (UnknownHostException e) {
+                // 主机名没有IPv4地址时使用其IPv6地址
+                try {
+                    return InetAddress.getAllByName(host)[0];
+                } catch (UnknownHostException unknown) {
+                    throw new IllegalArgumentException("Unknown host " + host);
+                }
+            }
+        }
+        
+        /**
+         * @param text 文本
+         * @return 是否为IPv4或IPv6地址字面量
+         */
+        private static boolean isLiteral(String text) {
+            try {
+                parseLiteral(text);
+                return true;
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+        }
+        
+        /**
+         * 解析IP地址字面量，不进行名称解析
+         * @param literal IPv4或IPv6地址字面量
+         * @return 地址
+         */
+        public static InetAddress parseLiteral(String literal) {
+            if (literal.indexOf(':') < 0) {
+                return ipNumToInetAddress(ipAddressToNum(literal));
+            }
+            if (!literal.matches("[0-9A-Fa-f:.]+")) {
+                throw new IllegalArgumentException("Invalid IPv6 address " + literal);
+            }
+            try {
+                // 仅含十六进制数字、冒号和点的字符串按字面量解析，不会查询DNS
+                return InetAddress.getByName(literal);
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("Invalid IPv6 address " + literal);
+            }
+        }
+        
+        /**
+         * 取地址的128位表示的高64位
+         * @param address IPv4或IPv6地址
+         * @return 高64位
+         */
+        public static long high(InetAddress address) {
+            byte[] bytes = address.getAddress();
+            return bytes.length == 4 ? 0 : bytesToLong(bytes, 0);
+        }
+        
+        /**
+         * 取地址的128位表示的低64位，IPv4为映射地址
+         * @param address IPv4或IPv6地址
+         * @return 低64位
+         */
+        public static long low(InetAddress address) {
+            byte[] bytes = address.getAddress();
+            return bytes.length == 4 ? IPV4_MAPPED | bytesToLong(bytes, 0) >>> 32 : bytesToLong(bytes, 8);
+        }
+        
+        /**
+         * 由128位表示构造地址，映射地址还原为IPv4
+         * @param high 高64位
+         * @param low 低64位
+         * @return 地址
+         */
+        public static InetAddress toInetAddress(long high, long low) {
+            if (high == 0 && (low >>> 32) == 0xFFFF) {
+                return ipNumToInetAddress(low & 0xFFFF_FFFFL);
+            }
+            byte[] bytes = new byte[16];
+            for (int i = 0; i < 8; i++) {
+                bytes[i] = (byte) (high >>> (56 - i * 8));
+                bytes[i + 8] = (byte) (low >>> (56 - i * 8));
+            }
+            try {
+                return InetAddress.getByAddress(bytes);
+            } catch (UnknownHostException e) {
+                // 只有地址长度错误时才会抛出，16字节不会发生
+                throw new IllegalStateException(e);
+            }
+        }
+        
+        /**
+         * 取地址所在的子网：IPv4为/24，IPv6为/120
+         * @param address 地址
+         * @return 子网首地址
+         */
+        public static InetAddress subnetOf(InetAddress address) {
+            return toInetAddress(high(address), low(address) & ~0xFFL);
+        }
+        
+        /**
+         * 读取大端序的long，不足8字节时低位补0
+         */
+        private static long bytesToLong(byte[] bytes, int from) {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (from + i < bytes.length ? bytes[from + i] & 0xFF : 0);
+            }
+            return value;
+        }
+        
+        /**
+         * 比较两个128位无符号数
+         * @return 负数、0或正数
+         */
+        public static int compare(long aHigh, long aLow, long bHigh, long bLow) {
+            int result = Long.compareUnsigned(aHigh, bHigh);
+            return result != 0 ? result : Long.compareUnsigned(aLow, bLow);
+        }
+        
+        /**
+         * 排序并合并重叠或相邻的区间
+         * @param ranges 任意顺序的闭区间
+         * @return 目标集合
+         */
+        private static TargetSet normalize(List<long[]> ranges) {
+            ranges.sort((a, b) -> compare(a[0], a[1], b[0], b[1]));
+            int n = ranges.size();
+            long[] sh = new long[n];
+            long[] sl = new long[n];
+            long[] eh = new long[n];
+            long[] el = new long[n];
+            int count = 0;
+            for (long[] range : ranges) {
+                int last = count - 1;
+                // 区间不跨越高64位边界，同一高位内起点不超过前一终点+1时合并
+                boolean mergeable = count > 0 && range[0] == eh[last]
+                        && (Long.compareUnsigned(range[1], el[last]) <= 0 || range[1] == el[last] + 1);
+                if (mergeable) {
+                    if (compare(range[2], range[3], eh[last], el[last]) > 0) {
+                        eh[last] = range[2];
+                        el[last] = range[3];
+                    }
+                } else {
+                    sh[count] = range[0];
+                    sl[count] = range[1];
+                    eh[count] = range[2];
+                    el[count] = range[3];
+                    count++;
+                }
+            }
+            return new TargetSet(Arrays.copyOf(sh, count), Arrays.copyOf(sl, count),
+                    Arrays.copyOf(eh, count), Arrays.copyOf(el, count));
+        }
+        
+        /**
+         * 求并集
+         * @param other 另一集合
+         * @return 新集合
+         */
+        public TargetSet union(TargetSet other) {
+            List<long[]> ranges = new ArrayList<>(startHigh.length + other.startHigh.length);
+            for (TargetSet set : new TargetSet[]{this, other}) {
+                for (int i = 0; i < set.startHigh.length; i++) {
+                    ranges.add(new long[]{set.startHigh[i], set.startLow[i], set.endHigh[i], set.endLow[i]});
+                }
+            }
+            return normalize(ranges);
+        }
+        
+        /**
+         * 求差集，两个有序区间列表一次归并完成
+         * 区间不跨越高64位边界，因此起止的加减只作用于低位
+         * @param other 需要排除的集合
+         * @return 新集合
+         */
+        public TargetSet subtract(TargetSet other) {
+            int capacity = startHigh.length + other.startHigh.length;
+            long[] sh = new long[capacity];
+            long[] sl = new long[capacity];
+            long[] eh = new long[capacity];
+            long[] el = new long[capacity];
+            int count = 0;
+            int j = 0;
+            for (int i = 0; i < startHigh.length; i++) {
+                long high = startHigh[i];
+                long start = startLow[i];
+                long end = endLow[i];
+                boolean remaining = true;
+                // 跳过完全位于当前区间之前的排除区间
+                while (j < other.startHigh.length && compare(other.endHigh[j], other.endLow[j], high, start) < 0) {
+                    j++;
+                }
+                int k = j;
+                while (remaining && k < other.startHigh.length
+                        && compare(other.startHigh[k], other.startLow[k], high, end) <= 0) {
+                    if (compare(other.startHigh[k], other.startLow[k], high, start) > 0) {
+                        sh[count] = high;
+                        sl[count] = start;
+                        eh[count] = high;
+                        el[count] = other.startLow[k] - 1;
+                        count++;
+                    }
+                    if (compare(other.endHigh[k], other.endLow[k], high, end) >= 0) {
+                        remaining = false;
+                    } else {
+                        start = other.endLow[k] + 1;
+                    }
+                    k++;
+                }
+                if (remaining) {
+                    sh[count] = high;
+                    sl[count] = start;
+                    eh[count] = high;
+                    el[count] = end;
+                    count++;
+                }
+            }
+            return new TargetSet(Arrays.copyOf(sh, count), Arrays.copyOf(sl, count),
+                    Arrays.copyOf(eh, count), Arrays.copyOf(el, count));
+        }
+        
+        /**
+         * @return 集合中的地址总数
+         */
+        public long size() {
+            return size;
+        }
+        
+        /**
+         * 判断地址是否在集合中
+         * @param address IPv4或IPv6地址
+         * @return 是否包含
+         */
+        public boolean contains(InetAddress address) {
+            long high = high(address);
+            long low = low(address);
+            int lo = 0;
+            int hi = startHigh.length - 1;
+            // 找到最后一个起点不大于地址的区间
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (compare(startHigh[mid], startLow[mid], high, low) <= 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return hi >= 0 && compare(high, low, endHigh[hi], endLow[hi]) <= 0;
+        }
+        
+        /**
+         * 按升序下标取出地址，不经过字符串
+         * @param index 下标，范围 [0, size)
+         * @return 地址
+         */
+        public InetAddress get(long index) {
+            int i = Arrays.binarySearch(offsets, index);
+            if (i < 0) {
+                i = -i - 2;
+            }
+            return toInetAddress(startHigh[i], startLow[i] + (index - offsets[i]));
+        }
+    }
+    
+    /**
+     * 探测顺序的随机排列 - 以种子为密钥的Feistel网络加循环游走，把 [0, domain) 双射到自身
+     * 只保存几个轮密钥，可按序号随机访问，因此并发取用时无需任何共享状态
+     */
+    static class ProbePermutation {
+        private static final int ROUNDS = 4;
+        
+        private final long domain;
+        private final int halfBits;
+        private final long halfMask;
+        private final long[] keys = new long[ROUNDS];
+        
+        /**
+         * 构造函数
+         * @param domain 排列的取值范围大小
+         * @param seed 随机种子
+         */
+        public ProbePermutation(long domain, long seed) {
+            this.domain = domain;
+            // Feistel网络作用在不小于domain的偶数位宽上
+            int bits = Math.max(2, 64 - Long.numberOfLeadingZeros(Math.max(1, domain - 1)));
+            this.halfBits = (bits + 1) / 2;
+            this.halfMask = (1L << halfBits) - 1;
+            long state = seed;
+            for (int i = 0; i < ROUNDS; i++) {
+                state += 0x9E3779B97F4A7C15L;
+                keys[i] = mix(state);
+            }
+        }
+        
+        /**
+         * 计算序号对应的排列位置
+         * @param index 序号，范围 [0, domain)
+         * @return 排列后的位置，范围 [0, domain)
+         */
+        public long apply(long index) {
+            // 循环游走：加密结果超出范围时继续加密，直到落回范围内
+            long value = index;
+            do {
+                value = encrypt(value);
+            } while (value >= domain);
+            return value;
+        }
+        
+        /**
+         * Feistel网络加密，在 [0, 2^(2*halfBits)) 上是双射
+         */
+        private long encrypt(long value) {
+            long left = value >>> halfBits;
+            long right = value & halfMask;
+            for (int i = 0; i < ROUNDS; i++) {
+                long next = left ^ (mix(right ^ keys[i]) & halfMask);
+                left = right;
+                right = next;
+            }
+            return (left << halfBits) | right;
+        }
+        
+        /**
+         * SplitMix64的混合函数
+         */
+        private static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+    }
+    
+    /**
+     * 分布式扫描协议 - 基于TCP的紧凑二进制消息，所有数值为大端序
+     * 工作者：HELLO(魔数) | REQUEST | RESULT(单元号, 地址, 端口, 状态) | UNIT_DONE(单元号, 探测数) | HEARTBEAT
+     * 协调者：UNIT(单元号, 起止端口, 主机数, 各主机地址) | WAIT | DONE
+     */
+    static final class ScanProtocol {
+        static final int MAGIC = 0x50535731; // "PSW1"
+        // 工作者发送的消息
+        static final byte REQUEST = 1;
+        static final byte RESULT = 2;
+        static final byte UNIT_DONE = 3;
+        static final byte HEARTBEAT = 4;
+        // 协调者发送的消息
+        static final byte UNIT = 1;
+        static final byte WAIT = 2;
+        static final byte DONE = 3;
+        // 工作者心跳间隔与协调者判定工作者失联的超时（毫秒）
+        static final int HEARTBEAT_INTERVAL = 5000;
+        static final int WORKER_TIMEOUT = 30000;
+        
+        private ScanProtocol() {
+        }
+        
+        /**
+         * 写出地址：长度字节（4或16）加地址字节
+         */
+        static void writeAddress(DataOutputStream out, InetAddress address) throws IOException {
+            byte[] bytes = address.getAddress();
+            out.writeByte(bytes.length);
+            out.write(bytes);
+        }
+        
+        /**
+         * 读取writeAddress写出的地址
+         */
+        static InetAddress readAddress(DataInputStream in) throws IOException {
+            int length = in.readUnsignedByte();
+            if (length != 4 && length != 16) {
+                throw new IOException("Invalid address length " + length);
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return InetAddress.getByAddress(bytes);
+        }
+    }
+    
+    /**
+     * 工作单元 - 目标集合中一段连续的主机与一段端口范围
+     */
+    static class WorkUnit {
+        private final int id;
+        private final long firstHost;
+        private final int hostCount;
+        private final int startPort;
+        private final int endPort;
+        
+        /**
+         * 构造函数
+         * @param id 单元号
+         * @param firstHost 第一个主机在目标集合中的下标
+         * @param hostCount 主机数
+         * @param startPort 起始端口
+         * @param endPort 终止端口
+         */
+        public WorkUnit(int id, long firstHost, int hostCount, int startPort, int endPort) {
+            this.id = id;
+            this.firstHost = firstHost;
+            this.hostCount = hostCount;
+            this.startPort = startPort;
+            this.endPort = endPort;
+        }
+    }
+    
+    /**
+     * 扫描协调者 - 把目标空间切分为工作单元分发给工作者，汇总结果
+     * 工作单元的结果在收到UNIT_DONE后才计入，工作者断开或失联时其未完成的单元重新排队，因此每个单元恰好计入一次
+     */
+    static class ScanCoordinator {
+        // 每个工作单元的主机数与端口数
+        private static final int UNIT_HOSTS = 64;
+        private static final int UNIT_PORTS = 4096;
+        
+        private final TargetSet targets;
+        private final ScanResults results;
+        private final ConcurrentLinkedDeque<WorkUnit> pending = new ConcurrentLinkedDeque<>();
+        private final AtomicInteger unfinished = new AtomicInteger();
+        private final CountDownLatch finished = new CountDownLatch(1);
+        // 当前连接的工作者数
+        private final AtomicInteger activeWorkers = new AtomicInteger();
+        
+        /**
+         * 构造函数 - 切分工作单元
+         * @param targets 目标主机集合
+         * @param startPort 起始端口
+         * @param endPort 终止端口
+         * @param results 汇总结果的结果集
+         */
+        public ScanCoordinator(TargetSet targets, int startPort, int endPort, ScanResults results) {
+            this.targets = targets;
+            this.results = results;
+            int id = 0;
+            for (long host = 0; host < targets.size(); host += UNIT_HOSTS) {
+                int hostCount = (int) Math.min(UNIT_HOSTS, targets.size() - host);
+                for (int port = startPort; port <= endPort; port += UNIT_PORTS) {
+                    pending.add(new WorkUnit(id++, host, hostCount, port, Math.min(endPort, port + UNIT_PORTS - 1)));
+                }
+            }
+            unfinished.set(id);
+        }
+        
+        /**
+         * 监听工作者连接，阻塞直到所有工作单元完成
+         * @param port 监听端口
+         * @throws IOException 无法监听时抛出
+         * @throws InterruptedException 等待时被中断
+         */
+        public void run(int port) throws IOException, InterruptedException {
+            if (unfinished.get() == 0) {
+                return;
+            }
+            try (ServerSocket server = new ServerSocket(port)) {
+                System.out.println("Coordinator listening on port " + port + ", " + unfinished.get() + " work units");
+                Thread acceptor = new Thread(() -> {
+                    while (!server.isClosed()) {
+                        try {
+                            Socket socket = server.accept();
+                            Thread handler = new Thread(() -> serve(socket), "worker-" + socket.getRemoteSocketAddress());
+                            handler.setDaemon(true);
+                            handler.start();
+                        } catch (IOException e) {
+                            // 监听套接字关闭，停止接受连接
+                        }
+                    }
+                }, "coordinator-accept");
+                acceptor.setDaemon(true);
+                acceptor.start();
+                finished.await();
+                // 给仍连接的工作者留出时间收到DONE
+                long deadline = System.nanoTime() + ScanProtocol.HEARTBEAT_INTERVAL * 1_000_000L;
+                while (activeWorkers.get() > 0 && System.nanoTime() - deadline < 0) {
+                    Thread.sleep(50);
+                }
+            }
+            resultSink.flush();
+        }
+        
+        /**
+         * 处理单个工作者连接
+         * @param socket 工作者连接
+         */
+        private void serve(Socket socket) {
+            WorkUnit current = null;
+            // 当前单元已收到的结果，单元完成后才并入总结果
+            ScanResults buffered = new ScanResults();
+            activeWorkers.incrementAndGet();
+            String worker = String.valueOf(socket.getRemoteSocketAddress());
+            try (Socket connection = socket;
+                 DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()))) {
+                connection.setSoTimeout(ScanProtocol.WORKER_TIMEOUT);
+                if (in.readInt() != ScanProtocol.MAGIC) {
+                    throw new IOException("Unknown protocol");
+                }
+                resultSink.write("Worker connected: " + worker);
+                while (true) {
+                    byte message = in.readByte();
+                    if (message == ScanProtocol.REQUEST) {
+                        current = pending.poll();
+                        if (current != null) {
+                            sendUnit(out, current);
+                        } else if (unfinished.get() > 0) {
+                            // 其余单元仍在其他工作者手中，可能因失联重新排队
+                            out.writeByte(ScanProtocol.WAIT);
+                        } else {
+                            out.writeByte(ScanProtocol.DONE);
+                            out.flush();
+                            return;
+                        }
+                        out.flush();
+                    } else if (message == ScanProtocol.RESULT) {
+                        int unitId = in.readInt();
+                        InetAddress address = ScanProtocol.readAddress(in);
+                        int port = in.readUnsignedShort();
+                        int code = in.readUnsignedByte();
+                        if (code >= PortState.values().length) {
+                            throw new IOException("Unknown port state " + code);
+                        }
+                        PortState state = PortState.values()[code];
+                        if (current == null || unitId != current.id) {
+                            throw new IOException("Result for unassigned unit " + unitId);
+                        }
+                        buffered.host(address, 0, 65536).set(port, state);
+                    } else if (message == ScanProtocol.UNIT_DONE) {
+                        int unitId = in.readInt();
+                        long probes = in.readLong();
+                        if (current == null || unitId != current.id) {
+                            throw new IOException("Completion for unassigned unit " + unitId);
+                        }
+                        commit(current, buffered, probes);
+                        buffered = new ScanResults();
+                        current = null;
+                    } else if (message != ScanProtocol.HEARTBEAT) {
+                        throw new IOException("Unknown message " + message);
+                    }
+                }
+            } catch (SocketTimeoutException | EOFException e) {
+                resultSink.write("Worker lost: " + worker);
+            } catch (IOException e) {
+                resultSink.write("Worker failed: " + worker + " (" + e.getMessage() + ")");
+            } finally {
+                if (current != null) {
+                    // 未完成的单元交给其他工作者
+                    pending.addFirst(current);
+                }
+                activeWorkers.decrementAndGet();
+            }
+        }
+        
+        /**
+         * 发送工作单元，主机地址逐个写出
+         */
+        private void sendUnit(DataOutputStream out, WorkUnit unit) throws IOException {
+            out.writeByte(ScanProtocol.UNIT);
+            out.writeInt(unit.id);
+            out.writeShort(unit.startPort);
+            out.writeShort(unit.endPort);
+            out.writeInt(unit.hostCount);
+            for (int i = 0; i < unit.hostCount; i++) {
+                ScanProtocol.writeAddress(out, targets.get(unit.firstHost + i));
+            }
+        }
+        
+        /**
+         * 计入一个已完成单元的结果
+         */
+        private void commit(WorkUnit unit, ScanResults buffered, long probes) {
+            buffered.forEachReported((address, port, before, state) -> {
+                results.host(address, results.startPort, results.endPort - results.startPort + 1).set(port, state);
+                printResult(address.getHostAddress(), port, state);
+            });
+            results.countProbes(probes);
+            int left = unfinished.decrementAndGet();
+            resultSink.write("Work unit " + unit.id + " completed, " + left + " remaining");
+            if (left == 0) {
+                finished.countDown();
+            }
+        }
+    }
+    
+    /**
+     * 扫描工作者 - 从协调者领取工作单元，用本地扫描引擎执行后回传非关闭端口的结果
+     */
+    static class ScanWorker {
+        private final String host;
+        private final int port;
+        
+        /**
+         * 构造函数
+         * @param host 协调者地址
+         * @param port 协调者端口
+         */
+        public ScanWorker(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+        
+        /**
+         * 连接协调者并循环处理工作单元，直到协调者通知结束
+         * @throws IOException 与协调者通信失败时抛出
+         * @throws InterruptedException 等待时被中断
+         */
+        public void run() throws IOException, InterruptedException {
+            try (Socket socket = new Socket(host, port);
+                 DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+                System.out.println("Connected to coordinator " + host + ":" + port);
+                out.writeInt(ScanProtocol.MAGIC);
+                out.flush();
+                // 扫描期间定期发送心跳，让协调者区分慢单元与失联
+                Thread heartbeat = new Thread(() -> {
+                    try {
+                        while (!socket.isClosed()) {
+                            Thread.sleep(ScanProtocol.HEARTBEAT_INTERVAL);
+                            synchronized (out) {
+                                out.writeByte(ScanProtocol.HEARTBEAT);
+                                out.flush();
+                            }
+                        }
+                    } catch (IOException | InterruptedException e) {
+                        // 连接已关闭，停止心跳
+                    }
+                }, "worker-heartbeat");
+                heartbeat.setDaemon(true);
+                heartbeat.start();
+                
+                while (true) {
+                    synchronized (out) {
+                        out.writeByte(ScanProtocol.REQUEST);
+                        out.flush();
+                    }
+                    byte message = in.readByte();
+                    if (message == ScanProtocol.DONE) {
+                        System.out.println("Coordinator reports all work units completed");
+                        return;
+                    }
+                    if (message == ScanProtocol.WAIT) {
+                        Thread.sleep(1000);
+                        continue;
+                    }
+                    if (message != ScanProtocol.UNIT) {
+                        throw new IOException("Unknown message " + message);
+                    }
+                    scanUnit(in, out);
+                }
+            }
+        }
+        
+        /**
+         * 读取并执行一个工作单元，回传结果
+         */
+        private void scanUnit(DataInputStream in, DataOutputStream out) throws IOException {
+            int unitId = in.readInt();
+            int startPort = in.readUnsignedShort();
+            int endPort = in.readUnsignedShort();
+            int hostCount = in.readInt();
+            List<InetAddress> addresses = new ArrayList<>(hostCount);
+            for (int i = 0; i < hostCount; i++) {
+                addresses.add(ScanProtocol.readAddress(in));
+            }
+            TargetSet targets = TargetSet.of(addresses);
+            
+            System.out.println("Work unit " + unitId + ": " + hostCount + " hosts, port range: " + startPort + " - " + endPort);
+            ScanResults results = new ScanResults(targets, startPort, endPort);
+            ProbeScheduler scheduler = new ProbeScheduler(targets, startPort, endPort, null, results, null, 0, 1);
+            if (!scanTargets(scheduler, (int) Math.ceil((double) (endPort - startPort + 1) / PORTS_PER_THREAD))) {
+                // 不回传不完整的结果，断开后协调者会把该单元交给其他工作者
+                throw new IOException("Work unit " + unitId + " failed");
+            }
+            
+            synchronized (out) {
+                IOException[] failure = new IOException[1];
+                results.forEachReported((address, port, before, state) -> {
+                    try {
+                        out.writeByte(ScanProtocol.RESULT);
+                        out.writeInt(unitId);
+                        ScanProtocol.writeAddress(out, address);
+                        out.writeShort(port);
+                        out.writeByte(state.ordinal());
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                });
+                if (failure[0] != null) {
+                    throw failure[0];
+                }
+                out.writeByte(ScanProtocol.UNIT_DONE);
+                out.writeInt(unitId);
+                out.writeLong(results.probeCount());
+                out.flush();
+            }
+        }
+    }
+    
+    /**
+     * 全局限速器 - 以nanoTime计算每个探测的理论发出时间（等价于容量很小的令牌桶），探测间隔均匀
+     * 允许提前一个间隔或2毫秒发出，吸收线程与事件循环唤醒的延迟，否则每次迟到都会累积成速率损失
+     */
+    static class RateLimiter {
+        private final long interval;
+        private final long tolerance;
+        // 下一个探测的理论发出时间
+        private final AtomicLong nextFree = new AtomicLong(System.nanoTime());
+        
+        /**
+         * 构造函数
+         * @param probesPerSecond 每秒探测数
+         */
+        public RateLimiter(double probesPerSecond) {
+            this.interval = Math.max(1, (long) (1_000_000_000L / probesPerSecond));
+            this.tolerance = Math.max(interval, 2_000_000L);
+        }
+        
+        /**
+         * @return 距离允许发出下一个探测的时间（纳秒），0表示现在即可发出
+         */
+        public long delayNanos() {
+            return Math.max(0, nextFree.get() - tolerance - System.nanoTime());
+        }
+        
+        /**
+         * 占用一个探测名额，之后的探测顺延一个间隔
+         */
+        public void acquire() {
+            long now = System.nanoTime();
+            long current;
+            do {
+                current = nextFree.get();
+            } while (!nextFree.compareAndSet(current, Math.max(current, now) + interval));
+        }
+    }
+    
+    /**
+     * 自适应并发控制器（AIMD） - 按窗口统计探测被丢弃的比例调整同时进行的探测数
+     * 窗口内丢弃比例低于阈值时增加并发（慢启动阶段翻倍，之后加性增加），超过阈值时减半
+     * 只有曾经应答过的主机发生的超时才计为丢弃，整机过滤或不存在的主机不会拖低并发
+     */
+    static class ConcurrencyController {
+        private static final int MIN_LIMIT = 8;
+        private static final int INITIAL_LIMIT = 64;
+        private static final int ADDITIVE_STEP = 16;
+        private static final double DROP_THRESHOLD = 0.05;
+        
+        private final int maxLimit;
+        private int limit;
+        private int inFlight;
+        private boolean slowStart = true;
+        // 当前窗口的完成数与丢弃数
+        private int windowProbes;
+        private int windowDrops;
+        
+        /**
+         * 构造函数
+         * @param maxLimit 并发上限
+         */
+        public ConcurrencyController(int maxLimit) {
+            this.maxLimit = maxLimit;
+            this.limit = Math.min(INITIAL_LIMIT, maxLimit);
+        }
+        
+        /**
+         * 未达到当前并发数时占用一个名额
+         * @return 是否成功
+         */
+        public synchronized boolean tryAcquire() {
+            if (inFlight >= limit) {
+                return false;
+            }
+            inFlight++;
+            return true;
+        }
+        
+        /**
+         * 归还未使用的名额
+         */
+        public synchronized void cancel() {
+            inFlight--;
+        }
+        
+        /**
+         * 探测完成时归还名额，每个窗口结束时调整并发数
+         * @param dropped 探测是否被判定为丢弃
+         */
+        public synchronized void release(boolean dropped) {
+            inFlight--;
+            windowProbes++;
+            if (dropped) {
+                windowDrops++;
+            }
+            // 一个窗口约为当前并发数个探测，即大致一个往返
+            if (windowProbes < limit) {
+                return;
+            }
+            if (windowDrops > windowProbes * DROP_THRESHOLD) {
+                limit = Math.max(MIN_LIMIT, limit / 2);
+                slowStart = false;
+            } else if (slowStart) {
+                limit = Math.min(maxLimit, limit * 2);
+            } else {
+                limit = Math.min(maxLimit, limit + ADDITIVE_STEP);
+            }
+            windowProbes = 0;
+            windowDrops = 0;
+        }
+    }
+}